@@ -0,0 +1,50 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: GPL-2.0-or-later
+ */
+
+package com.wireguard.android;
+
+import android.util.Log;
+
+import com.wireguard.android.backend.Backend;
+import com.wireguard.android.backend.FakeBackend;
+import com.wireguard.android.configStore.ConfigStore;
+import com.wireguard.android.configStore.InMemoryConfigStore;
+import com.wireguard.config.Config;
+
+/**
+ * Application that starts with a fake backend and many tunnels kept in memory, so that the time
+ * taken to start depends only on the app itself.
+ */
+
+public class BenchmarkApplication extends Application {
+    public static final int TUNNEL_COUNT = 100;
+    private static final String TAG = "WireGuard/" + BenchmarkApplication.class.getSimpleName();
+    private ConfigStore configStore;
+
+    public ConfigStore getConfigStore() {
+        return configStore;
+    }
+
+    public static String getTunnelName(final int index) {
+        return "tunnel" + index;
+    }
+
+    @Override
+    protected Backend chooseBackend() {
+        return new FakeBackend();
+    }
+
+    @Override
+    protected ConfigStore createConfigStore() {
+        configStore = new InMemoryConfigStore();
+        try {
+            for (int i = 0; i < TUNNEL_COUNT; ++i)
+                configStore.create(getTunnelName(i), new Config());
+        } catch (final Exception e) {
+            Log.e(TAG, "Unable to create tunnels", e);
+        }
+        return configStore;
+    }
+}
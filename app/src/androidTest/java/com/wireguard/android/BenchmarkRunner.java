@@ -0,0 +1,22 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: GPL-2.0-or-later
+ */
+
+package com.wireguard.android;
+
+import android.content.Context;
+import android.support.test.runner.AndroidJUnitRunner;
+
+/**
+ * Instrumentation runner that replaces the application with {@link BenchmarkApplication}.
+ */
+
+public class BenchmarkRunner extends AndroidJUnitRunner {
+    @Override
+    public android.app.Application newApplication(final ClassLoader cl, final String className,
+                                                  final Context context)
+            throws ClassNotFoundException, IllegalAccessException, InstantiationException {
+        return super.newApplication(cl, BenchmarkApplication.class.getName(), context);
+    }
+}
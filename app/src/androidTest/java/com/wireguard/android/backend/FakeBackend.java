@@ -0,0 +1,73 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: GPL-2.0-or-later
+ */
+
+package com.wireguard.android.backend;
+
+import com.wireguard.android.model.Tunnel;
+import com.wireguard.android.model.Tunnel.State;
+import com.wireguard.android.model.Tunnel.Statistics;
+import com.wireguard.config.Config;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Backend that only remembers which tunnels are up, without creating any interfaces, so that
+ * measurements only cover the app's own work.
+ */
+
+public final class FakeBackend implements Backend {
+    private final Set<String> running = 
+            Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    @Override
+    public Config applyConfig(final Tunnel tunnel, final Config config) {
+        return config;
+    }
+
+    @Override
+    public Set<String> enumerate() {
+        return new HashSet<>(running);
+    }
+
+    @Override
+    public State getState(final Tunnel tunnel) {
+        return State.of(running.contains(tunnel.getName()));
+    }
+
+    @Override
+    public Statistics getStatistics(final Tunnel tunnel) {
+        return new Statistics();
+    }
+
+    @Override
+    public String getTypeName() {
+        return "Fake";
+    }
+
+    @Override
+    public String getVersion() {
+        return "0";
+    }
+
+    /**
+     * Bring down every tunnel at once.
+     */
+    public void reset() {
+        running.clear();
+    }
+
+    @Override
+    public State setState(final Tunnel tunnel, final State state) {
+        final String name = tunnel.getName();
+        if (state == State.UP || (state == State.TOGGLE && !running.contains(name)))
+            running.add(name);
+        else
+            running.remove(name);
+        return getState(tunnel);
+    }
+}
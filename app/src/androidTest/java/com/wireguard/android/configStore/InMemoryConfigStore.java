@@ -0,0 +1,65 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: GPL-2.0-or-later
+ */
+
+package com.wireguard.android.configStore;
+
+import com.wireguard.config.Config;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Configuration store that only keeps configurations in memory, so that measurements do not
+ * depend on the speed of the storage.
+ */
+
+public final class InMemoryConfigStore implements ConfigStore {
+    private final Map<String, Config> configs = new ConcurrentHashMap<>();
+
+    @Override
+    public Config create(final String name, final Config config) throws IOException {
+        if (configs.putIfAbsent(name, config) != null)
+            throw new IOException("Configuration for " + name + " already exists");
+        return config;
+    }
+
+    @Override
+    public void delete(final String name) throws FileNotFoundException {
+        if (configs.remove(name) == null)
+            throw new FileNotFoundException("Configuration for " + name + " not found");
+    }
+
+    @Override
+    public Set<String> enumerate() {
+        return new HashSet<>(configs.keySet());
+    }
+
+    @Override
+    public Config load(final String name) throws FileNotFoundException {
+        final Config config = configs.get(name);
+        if (config == null)
+            throw new FileNotFoundException("Configuration for " + name + " not found");
+        return config;
+    }
+
+    @Override
+    public void rename(final String name, final String replacement) throws IOException {
+        final Config config = load(name);
+        if (configs.putIfAbsent(replacement, config) != null)
+            throw new IOException("Configuration for " + replacement + " already exists");
+        configs.remove(name);
+    }
+
+    @Override
+    public Config save(final String name, final Config config) throws FileNotFoundException {
+        if (configs.replace(name, config) == null)
+            throw new FileNotFoundException("Configuration for " + name + " not found");
+        return config;
+    }
+}
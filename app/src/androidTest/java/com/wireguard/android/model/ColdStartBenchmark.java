@@ -0,0 +1,119 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: GPL-2.0-or-later
+ */
+
+package com.wireguard.android.model;
+
+import android.app.Instrumentation;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.wireguard.android.Application;
+import com.wireguard.android.BenchmarkApplication;
+import com.wireguard.android.backend.FakeBackend;
+import com.wireguard.android.configStore.ConfigStore;
+import com.wireguard.android.util.StartupTrace;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import java9.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures how long it takes from creating the tunnel manager until the tunnels that were
+ * running before have been brought back up, which is the part of a cold start that grows with
+ * the number of tunnels. Each iteration starts from the same saved state, against a fake backend
+ * and an in-memory configuration store, so the results are repeatable. The results, along with
+ * the startup report of the test process, are printed with the instrumentation output.
+ */
+
+@RunWith(AndroidJUnit4.class)
+public class ColdStartBenchmark {
+    private static final int ITERATIONS = 30;
+    // Every this many tunnels, one was running before the simulated restart.
+    private static final int RUNNING_INTERVAL = 4;
+    private static final String TAG = "WireGuard/" + ColdStartBenchmark.class.getSimpleName();
+    private static final long TIMEOUT_SECONDS = 30;
+    private static final int WARMUP_ITERATIONS = 5;
+
+    private static long measure(final Instrumentation instrumentation,
+                                final ConfigStore configStore, final Set<String> running)
+            throws InterruptedException {
+        final FakeBackend backend = (FakeBackend) Application.getBackend();
+        backend.reset();
+        Application.getSharedPreferences().edit()
+                .putStringSet(TunnelManager.KEY_RUNNING_TUNNELS, running)
+                .putString(TunnelManager.KEY_LAST_USED_TUNNEL,
+                        BenchmarkApplication.getTunnelName(0))
+                .commit();
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final AtomicReference<TunnelManager> manager = new AtomicReference<>();
+        final long[] times = new long[2];
+        instrumentation.runOnMainSync(() -> {
+            times[0] = SystemClock.elapsedRealtimeNanos();
+            manager.set(new TunnelManager(configStore));
+            manager.get().onCreate();
+            manager.get().restoreState(true).whenComplete((x, e) -> {
+                times[1] = SystemClock.elapsedRealtimeNanos();
+                error.set(e);
+                done.countDown();
+            });
+        });
+        assertTrue("Timed out restoring tunnels", done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertNull(error.get());
+        assertEquals(running, backend.enumerate());
+        // Wait for the state journal, so the next iteration does not overlap with its writes.
+        instrumentation.runOnMainSync(() -> manager.get().saveState());
+        return times[1] - times[0];
+    }
+
+    @Test
+    public void restoreRunningTunnels() throws Exception {
+        final Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+        // Let the application's own start finish, so it does not touch the backend meanwhile.
+        final TunnelManager appManager = Application.getTunnelManager();
+        final CompletableFuture<Void> started = new CompletableFuture<>();
+        instrumentation.runOnMainSync(() -> appManager.restoreState(true)
+                .whenComplete((x, e) -> started.complete(null)));
+        started.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        final ConfigStore configStore = ((BenchmarkApplication) Application.get()).getConfigStore();
+        final Set<String> running = new HashSet<>();
+        for (int i = 0; i < BenchmarkApplication.TUNNEL_COUNT; i += RUNNING_INTERVAL)
+            running.add(BenchmarkApplication.getTunnelName(i));
+
+        for (int i = 0; i < WARMUP_ITERATIONS; ++i)
+            measure(instrumentation, configStore, running);
+        final long[] times = new long[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; ++i)
+            times[i] = measure(instrumentation, configStore, running);
+        Arrays.sort(times);
+
+        final Bundle results = new Bundle();
+        results.putInt("tunnels", BenchmarkApplication.TUNNEL_COUNT);
+        results.putInt("running", running.size());
+        results.putDouble("median_ms", times[ITERATIONS / 2] / 1e6);
+        results.putDouble("p90_ms", times[ITERATIONS * 9 / 10] / 1e6);
+        results.putDouble("max_ms", times[ITERATIONS - 1] / 1e6);
+        results.putString("startup_report", StartupTrace.getReport());
+        Log.i(TAG, results.toString());
+        instrumentation.sendStatus(0, results);
+    }
+}
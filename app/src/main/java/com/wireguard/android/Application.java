@@ -6,11 +6,13 @@
 package com.wireguard.android;
 
 import android.content.SharedPreferences;
-import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.preference.PreferenceManager;
 import android.support.v7.app.AppCompatDelegate;
+import android.util.Log;
+import android.widget.Toast;
 
 import com.wireguard.android.backend.Backend;
 import com.wireguard.android.backend.GoBackend;
@@ -19,16 +21,24 @@ import com.wireguard.android.configStore.ConfigStore;
 import com.wireguard.android.configStore.FileConfigStore;
 import com.wireguard.android.model.TunnelManager;
 import com.wireguard.android.util.AsyncWorker;
+import com.wireguard.android.util.AsyncWorker.Lane;
 import com.wireguard.android.util.RootShell;
+import com.wireguard.android.util.StartupTrace;
+import com.wireguard.android.util.StartupTrace.Section;
 import com.wireguard.android.util.ToolsInstaller;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.Executor;
 
 public class Application extends android.app.Application {
+    private static final String KEY_BACKEND = "backend";
+    private static final String KEY_BACKEND_FINGERPRINT = "backend_fingerprint";
+    private static final String TAG = "WireGuard/" + Application.class.getSimpleName();
     private static WeakReference<Application> weakSelf;
     private AsyncWorker asyncWorker;
     private Backend backend;
@@ -56,14 +66,9 @@ public class Application extends android.app.Application {
         final Application app = get();
         synchronized (app) {
             if (app.backend == null) {
-                if (new File("/sys/module/wireguard").exists()) {
-                    try {
-                        app.rootShell.start();
-                        app.backend = new WgQuickBackend(app.getApplicationContext());
-                    } catch (final Exception ignored) { }
+                try (final Section ignored = StartupTrace.begin("Choose backend")) {
+                    app.backend = app.chooseBackend();
                 }
-                if (app.backend == null)
-                    app.backend = new GoBackend(app.getApplicationContext());
                 synchronized (app.haveBackendCallbacksLock) {
                     for (final BackendCallback callback : app.haveBackendCallbacks)
                         app.handler.post(() -> callback.callback(app.backend));
@@ -74,6 +79,75 @@ public class Application extends android.app.Application {
         }
     }
 
+    private static boolean hasKernelModule() {
+        return new File("/sys/module/wireguard").exists();
+    }
+
+    /**
+     * Pick the kernel backend if the module is loaded and root works, or the Go backend
+     * otherwise. The choice is remembered until the system, the app, or the module changes, but
+     * it is still checked in the background: a remembered kernel backend is forgotten if the root
+     * shell no longer starts, and a remembered Go backend is forgotten if root turns out to work
+     * after all. Either way, the new choice is made at the next start.
+     */
+    protected Backend chooseBackend() {
+        final String fingerprint = getBackendFingerprint();
+        final String cachedBackend = fingerprint.equals(sharedPreferences
+                .getString(KEY_BACKEND_FINGERPRINT, null)) ?
+                sharedPreferences.getString(KEY_BACKEND, null) : null;
+        if (WgQuickBackend.class.getSimpleName().equals(cachedBackend)) {
+            // Starting the root shell can take as long as the first command, so check it in the
+            // background; the backend starts the shell itself when it is first used.
+            asyncWorker.runAsync(Lane.BACKEND_IO, this::recheckKernelBackend);
+            return new WgQuickBackend(getApplicationContext());
+        }
+        if (GoBackend.class.getSimpleName().equals(cachedBackend)) {
+            // Asking for root may take a long time to be refused, so only do it in the background.
+            if (hasKernelModule())
+                asyncWorker.runAsync(Lane.BACKEND_IO, this::recheckRoot);
+            return new GoBackend(getApplicationContext());
+        }
+        Backend backend = null;
+        if (hasKernelModule()) {
+            try {
+                rootShell.start();
+                backend = new WgQuickBackend(getApplicationContext());
+            } catch (final Exception ignored) { }
+        }
+        if (backend == null)
+            backend = new GoBackend(getApplicationContext());
+        sharedPreferences.edit()
+                .putString(KEY_BACKEND, backend.getClass().getSimpleName())
+                .putString(KEY_BACKEND_FINGERPRINT, fingerprint)
+                .apply();
+        return backend;
+    }
+
+    /**
+     * @return Where the configurations of all tunnels are kept. Called once, when the
+     * application is created.
+     */
+    protected ConfigStore createConfigStore() {
+        return new FileConfigStore(getApplicationContext());
+    }
+
+    /**
+     * @return A string that changes whenever the choice of backend might, which is when the
+     * system, the app, or the kernel module is installed, updated, or removed.
+     */
+    private static String getBackendFingerprint() {
+        String moduleVersion = "none";
+        if (hasKernelModule()) {
+            try (final BufferedReader reader =
+                         new BufferedReader(new FileReader("/sys/module/wireguard/version"))) {
+                moduleVersion = reader.readLine();
+            } catch (final IOException ignored) {
+                moduleVersion = "unknown";
+            }
+        }
+        return Build.FINGERPRINT + '/' + BuildConfig.VERSION_CODE + '/' + moduleVersion;
+    }
+
     @FunctionalInterface
     public interface BackendCallback {
         void callback(final Backend backend);
@@ -105,25 +179,67 @@ public class Application extends android.app.Application {
         return get().tunnelManager;
     }
 
-    @Override
-    public void onCreate() {
-        super.onCreate();
+    /**
+     * The kernel backend was remembered from a time root worked. If it no longer does, forget
+     * that choice, so the Go backend is picked at the next start, and tell the user, since
+     * tunnels cannot be brought up until then.
+     */
+    private void recheckKernelBackend() {
+        try {
+            rootShell.start();
+        } catch (final Exception e) {
+            Log.w(TAG, "Root shell no longer available; the Go backend will be used after a " +
+                    "restart", e);
+            sharedPreferences.edit().remove(KEY_BACKEND).apply();
+            showToast(R.string.backend_root_lost);
+        }
+    }
 
-        handler = new Handler(Looper.getMainLooper());
-        final Executor executor = AsyncTask.SERIAL_EXECUTOR;
-        final ConfigStore configStore = new FileConfigStore(getApplicationContext());
+    /**
+     * The Go backend was remembered from a time root did not work. If it works now, forget that
+     * choice, so the kernel backend is picked at the next start. Tunnels may already be running
+     * on the Go backend, so it is not replaced now.
+     */
+    private void recheckRoot() {
+        try {
+            rootShell.start();
+        } catch (final Exception ignored) {
+            return;
+        }
+        Log.w(TAG, "Root shell available again; the kernel backend will be used after a restart");
+        sharedPreferences.edit().remove(KEY_BACKEND).apply();
+        showToast(R.string.backend_root_available);
+    }
 
-        asyncWorker = new AsyncWorker(executor, handler);
-        rootShell = new RootShell(getApplicationContext());
-        toolsInstaller = new ToolsInstaller(getApplicationContext());
+    private void showToast(final int resId) {
+        handler.post(() -> Toast.makeText(this, resId, Toast.LENGTH_LONG).show());
+    }
 
-        sharedPreferences = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
-        AppCompatDelegate.setDefaultNightMode(
-                sharedPreferences.getBoolean("dark_theme", false) ?
-                        AppCompatDelegate.MODE_NIGHT_YES : AppCompatDelegate.MODE_NIGHT_NO);
+    @Override
+    public void onCreate() {
+        try (final Section section = StartupTrace.begin("Application.onCreate")) {
+            super.onCreate();
+
+            handler = new Handler(Looper.getMainLooper());
+            final ConfigStore configStore = createConfigStore();
+
+            asyncWorker = new AsyncWorker(handler);
+            rootShell = new RootShell(getApplicationContext());
+            toolsInstaller = new ToolsInstaller(getApplicationContext());
+
+            // Reading a value waits for the file to be loaded.
+            try (final Section ignored = StartupTrace.begin("Load SharedPreferences")) {
+                sharedPreferences =
+                        PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
+                AppCompatDelegate.setDefaultNightMode(
+                        sharedPreferences.getBoolean("dark_theme", false) ?
+                                AppCompatDelegate.MODE_NIGHT_YES :
+                                AppCompatDelegate.MODE_NIGHT_NO);
+            }
 
-        tunnelManager = new TunnelManager(configStore);
-        asyncWorker.runAsync(Application::getBackend);
-        tunnelManager.onCreate();
+            tunnelManager = new TunnelManager(configStore);
+            asyncWorker.runAsync(Lane.BACKEND_IO, Application::getBackend);
+            tunnelManager.onCreate();
+        }
     }
 }
@@ -22,7 +22,10 @@ import com.wireguard.android.model.Tunnel;
 import com.wireguard.android.model.Tunnel.State;
 import com.wireguard.android.model.TunnelManager;
 import com.wireguard.android.util.ExceptionLoggers;
+import com.wireguard.android.util.StartupTrace;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.Objects;
 
 /**
@@ -39,6 +42,11 @@ public class QuickTileService extends TileService {
     private final OnTunnelChangedCallback onTunnelChangedCallback = new OnTunnelChangedCallback();
     private Tunnel tunnel;
 
+    @Override
+    protected void dump(final FileDescriptor fd, final PrintWriter writer, final String[] args) {
+        StartupTrace.dump(writer);
+    }
+
     @Override
     public void onClick() {
         if (tunnel != null) {
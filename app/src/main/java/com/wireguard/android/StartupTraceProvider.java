@@ -0,0 +1,62 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: GPL-2.0-or-later
+ */
+
+package com.wireguard.android;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.wireguard.android.util.StartupTrace;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
+/**
+ * Provider with no content, whose only purpose is to make the startup report available through
+ * {@code dumpsys activity provider com.wireguard.android/.StartupTraceProvider}. Unlike a
+ * service, a provider is published whenever the app's process is running, so the report can be
+ * read no matter which backend is in use or what started the process.
+ */
+
+public class StartupTraceProvider extends ContentProvider {
+    @Override
+    public int delete(final Uri uri, final String selection, final String[] selectionArgs) {
+        return 0;
+    }
+
+    @Override
+    public void dump(final FileDescriptor fd, final PrintWriter writer, final String[] args) {
+        StartupTrace.dump(writer);
+    }
+
+    @Override
+    public String getType(final Uri uri) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(final Uri uri, final ContentValues values) {
+        return null;
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public Cursor query(final Uri uri, final String[] projection, final String selection,
+                        final String[] selectionArgs, final String sortOrder) {
+        return null;
+    }
+
+    @Override
+    public int update(final Uri uri, final ContentValues values, final String selection,
+                      final String[] selectionArgs) {
+        return 0;
+    }
+}
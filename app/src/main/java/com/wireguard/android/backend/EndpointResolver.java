@@ -0,0 +1,195 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: GPL-2.0-or-later
+ */
+
+package com.wireguard.android.backend;
+
+import android.os.SystemClock;
+
+import com.wireguard.config.Config;
+import com.wireguard.config.IPCidr;
+import com.wireguard.config.Peer;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import java9.util.function.LongSupplier;
+
+/**
+ * Resolves the endpoints of a set of peers concurrently, so bringing up a tunnel waits for the
+ * slowest lookup instead of the sum of all of them. Results are cached for a short time, or until
+ * the network changes. Lookups go through a replaceable {@link Lookup}, and the time through a
+ * replaceable clock, so they can be served locally and tested off the device.
+ */
+
+final class EndpointResolver {
+    static final long CACHE_TTL = TimeUnit.SECONDS.toMillis(60);
+    private static final long LOOKUP_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+    private static final int MAX_THREADS = 8;
+
+    private final Map<String, CachedAddress> cache = new HashMap<>();
+    private final LongSupplier clock;
+    private final ThreadPoolExecutor executor;
+    private final Lookup lookup;
+
+    EndpointResolver() {
+        this(InetAddress::getAllByName, SystemClock::elapsedRealtime);
+    }
+
+    /**
+     * @param lookup The function used to resolve host names.
+     * @param clock  The source of the current time in milliseconds, such as
+     *               {@link SystemClock#elapsedRealtime()}.
+     */
+    EndpointResolver(final Lookup lookup, final LongSupplier clock) {
+        this.lookup = lookup;
+        this.clock = clock;
+        executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+            final Thread thread = new Thread(runnable, "EndpointResolver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private static InetAddress choose(final String host, final InetAddress[] addresses,
+                                      final boolean preferIpv6) throws UnknownHostException {
+        for (final InetAddress address : addresses) {
+            if (preferIpv6 ? address instanceof Inet6Address : address instanceof Inet4Address)
+                return address;
+        }
+        if (addresses.length == 0)
+            throw new UnknownHostException(host);
+        return addresses[0];
+    }
+
+    /**
+     * @return Whether a tunnel should reach its peers over IPv6 when a name has addresses of both
+     * families. This is the case when its interface only has IPv6 addresses.
+     */
+    private static boolean prefersIpv6(final Config config) {
+        boolean hasIpv6 = false;
+        for (final IPCidr address : config.getInterface().getAddresses()) {
+            if (!address.isIpv6())
+                return false;
+            hasIpv6 = true;
+        }
+        return hasIpv6;
+    }
+
+    /**
+     * Forget all cached results. This must be called when the network changes, since the old
+     * results may not be reachable, or correct, from the new one.
+     */
+    synchronized void invalidate() {
+        cache.clear();
+    }
+
+    /**
+     * Resolve the endpoints of the peers of a tunnel. Lookups that are not cached run in
+     * parallel. If any of them fails or takes too long, this throws right away without waiting for
+     * the others. When a name has addresses of both families, the one matching the addresses of
+     * the tunnel's interface is used.
+     *
+     * @param config The configuration of the tunnel. Peers without an endpoint are skipped.
+     * @return The address for each endpoint host name, as written in the configuration.
+     * @throws UnknownHostException If a name could not be resolved.
+     */
+    Map<String, InetAddress> resolve(final Config config)
+            throws InterruptedException, UnknownHostException {
+        final List<Peer> peers = config.getPeers();
+        final boolean preferIpv6 = prefersIpv6(config);
+        final Map<String, InetAddress> results = new HashMap<>(peers.size());
+        final List<String> misses = new ArrayList<>();
+        final long now = clock.getAsLong();
+        synchronized (this) {
+            for (final Peer peer : peers) {
+                final InetSocketAddress endpoint = peer.getEndpoint();
+                if (endpoint == null || results.containsKey(endpoint.getHostString()))
+                    continue;
+                final String host = endpoint.getHostString();
+                final CachedAddress cached = cache.get(host);
+                if (cached != null && now - cached.time <= CACHE_TTL) {
+                    results.put(host, choose(host, cached.addresses, preferIpv6));
+                } else if (!misses.contains(host)) {
+                    misses.add(host);
+                }
+            }
+        }
+        if (misses.isEmpty())
+            return results;
+
+        final CompletionService<CachedAddress> lookups = new ExecutorCompletionService<>(executor);
+        final List<Future<CachedAddress>> futures = new ArrayList<>(misses.size());
+        for (final String host : misses) {
+            futures.add(lookups.submit(() -> new CachedAddress(host, lookup.lookup(host),
+                    clock.getAsLong())));
+        }
+        try {
+            final long deadline = clock.getAsLong() + LOOKUP_TIMEOUT;
+            for (int i = 0; i < misses.size(); ++i) {
+                final long remaining = deadline - clock.getAsLong();
+                final Future<CachedAddress> done = lookups.poll(remaining, TimeUnit.MILLISECONDS);
+                if (done == null)
+                    throw new UnknownHostException("Timed out resolving endpoints");
+                final CachedAddress result;
+                try {
+                    result = done.get();
+                } catch (final ExecutionException e) {
+                    final UnknownHostException error =
+                            new UnknownHostException(e.getCause().getMessage());
+                    error.initCause(e.getCause());
+                    throw error;
+                }
+                results.put(result.host, choose(result.host, result.addresses, preferIpv6));
+                synchronized (this) {
+                    cache.put(result.host, result);
+                }
+            }
+        } finally {
+            // Don't leave unneeded lookups holding threads after a failure.
+            for (final Future<CachedAddress> future : futures)
+                future.cancel(true);
+        }
+        return results;
+    }
+
+    /**
+     * Function that resolves a host name, such as {@link InetAddress#getAllByName(String)}.
+     */
+    @FunctionalInterface
+    interface Lookup {
+        InetAddress[] lookup(String host) throws UnknownHostException;
+    }
+
+    /**
+     * Every address of a name, so the cache serves tunnels preferring either family.
+     */
+    private static final class CachedAddress {
+        private final InetAddress[] addresses;
+        private final String host;
+        private final long time;
+
+        private CachedAddress(final String host, final InetAddress[] addresses, final long time) {
+            this.host = host;
+            this.addresses = addresses;
+            this.time = time;
+        }
+    }
+}
@@ -9,7 +9,12 @@ package com.wireguard.android.backend;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.ConnectivityManager.NetworkCallback;
+import android.net.Network;
+import android.net.NetworkRequest;
 import android.os.ParcelFileDescriptor;
+import android.support.v4.util.ArrayMap;
 import android.support.v4.util.ArraySet;
 import android.util.Log;
 
@@ -20,41 +25,89 @@ import com.wireguard.android.model.Tunnel.State;
 import com.wireguard.android.model.Tunnel.Statistics;
 import com.wireguard.android.util.ExceptionLoggers;
 import com.wireguard.android.util.SharedLibraryLoader;
+import com.wireguard.android.util.StartupTrace;
 import com.wireguard.config.Config;
 import com.wireguard.config.IPCidr;
-import com.wireguard.config.Interface;
+import com.wireguard.config.IPCidrSet;
 import com.wireguard.config.Peer;
-import com.wireguard.crypto.KeyEncoding;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.util.Collections;
-import java.util.Formatter;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import java9.util.concurrent.CompletableFuture;
 
+/**
+ * WireGuard backend that runs tunnels in the userspace Go implementation. Every running tunnel
+ * is a separate device, and they all share the single VPN interface that Android allows. The
+ * interface carries the union of their addresses and routes, and each outgoing packet goes to
+ * the tunnel with the most specific AllowedIPs entry containing its destination, as it would
+ * with kernel routing. Between equally specific entries, the tunnel brought up first wins.
+ */
+
 public final class GoBackend implements Backend {
+    private static final int DEFAULT_MTU = 1280;
     private static final String TAG = "WireGuard/" + GoBackend.class.getSimpleName();
     private static CompletableFuture<VpnService> vpnService = new CompletableFuture<>();
 
     private final Context context;
-    private Tunnel currentTunnel;
-    private int currentTunnelHandle = -1;
+    private final EndpointResolver resolver = new EndpointResolver();
+    // Guarded by this, since AsyncWorker calls in from several threads.
+    private final Map<Tunnel, RunningTunnel> runningTunnels = new ArrayMap<>();
 
     public GoBackend(final Context context) {
         SharedLibraryLoader.loadSharedLibrary(context, "wg-go");
         this.context = context;
+        // Endpoints resolved on one network may be wrong, or unreachable, on the next.
+        final ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager != null)
+            connectivityManager.registerNetworkCallback(new NetworkRequest.Builder().build(),
+                    new NetworkCallback() {
+                        @Override
+                        public void onAvailable(final Network network) {
+                            resolver.invalidate();
+                        }
+
+                        @Override
+                        public void onLost(final Network network) {
+                            resolver.invalidate();
+                        }
+                    });
+    }
+
+    private static int getMtu(final Config config) {
+        final int mtu = config.getInterface().getMtu();
+        return mtu != 0 ? mtu : DEFAULT_MTU;
+    }
+
+    private static void protectSockets(final VpnService service, final int handle) {
+        service.protect(wgGetSocketV4(handle));
+        service.protect(wgGetSocketV6(handle));
     }
 
+    private static native String wgGetConfig(int handle);
+
     private static native int wgGetSocketV4(int handle);
 
     private static native int wgGetSocketV6(int handle);
 
-    private static native void wgTurnOff(int handle);
+    private static native int wgMuxSetMtu(int handle, int mtu);
+
+    private static native int wgMuxSetTun(int tunFd);
+
+    private static native int wgMuxTurnOn(String ifName, int mtu, String settings);
+
+    private static native int wgSetConfig(int handle, String settings);
 
-    private static native int wgTurnOn(String ifName, int tunFd, String settings);
+    private static native void wgTurnOff(int handle);
 
     private static native String wgVersion();
 
@@ -65,50 +118,139 @@ public final class GoBackend implements Backend {
     public String getTypeName() { return "Go userspace"; }
 
     @Override
-    public Config applyConfig(final Tunnel tunnel, final Config config) throws Exception {
-        if (tunnel.getState() == State.UP) {
-            // Restart the tunnel to apply the new config.
-            setStateInternal(tunnel, tunnel.getConfig(), State.DOWN);
+    public synchronized Config applyConfig(final Tunnel tunnel, final Config config) throws Exception {
+        final RunningTunnel running = runningTunnels.get(tunnel);
+        if (running == null || config.equals(running.config))
+            return config;
+        final Config oldConfig = running.config;
+        // Resolve endpoints first, so a failed lookup leaves the running tunnel untouched.
+        final Map<String, InetAddress> endpoints = resolver.resolve(config);
+        final boolean needsNewInterface = UapiConfig.needsNewInterface(oldConfig, config);
+        if (needsNewInterface) {
+            // The device itself keeps running; only the shared interface is replaced.
+            running.config = config;
             try {
-                setStateInternal(tunnel, config, State.UP);
+                establishInterface(vpnService.get());
             } catch (final Exception e) {
-                // The new configuration didn't work, so try to go back to the old one.
-                setStateInternal(tunnel, tunnel.getConfig(), State.UP);
+                running.config = oldConfig;
                 throw e;
             }
+            if (getMtu(config) != getMtu(oldConfig))
+                wgMuxSetMtu(running.handle, getMtu(config));
+        }
+        // Update the device in place without dropping sessions.
+        final String settings = UapiConfig.diff(oldConfig, config, endpoints);
+        if (!settings.isEmpty()) {
+            final int ret = wgSetConfig(running.handle, settings);
+            if (ret < 0) {
+                if (needsNewInterface) {
+                    running.config = oldConfig;
+                    wgMuxSetMtu(running.handle, getMtu(oldConfig));
+                    establishInterface(vpnService.get());
+                }
+                throw new Exception("Unable to configure tunnel (wgSetConfig return " + ret + ')');
+            }
+            // Changing the listen port rebinds the sockets, and the new ones must be protected too.
+            if (oldConfig.getInterface().getListenPort() != config.getInterface().getListenPort())
+                protectSockets(vpnService.get(), running.handle);
         }
+        running.config = config;
         return config;
     }
 
     @Override
-    public Set<String> enumerate() {
-        if (currentTunnel != null) {
-            final Set<String> runningTunnels = new ArraySet<>();
-            runningTunnels.add(currentTunnel.getName());
-            return runningTunnels;
+    public synchronized Set<String> enumerate() {
+        final Set<String> names = new ArraySet<>(runningTunnels.size());
+        for (final Tunnel tunnel : runningTunnels.keySet())
+            names.add(tunnel.getName());
+        return names;
+    }
+
+    /**
+     * Replace the shared VPN interface with one built from the configurations of all running
+     * tunnels, or close it if there are none. Packets in flight on the old interface are lost,
+     * but the devices and their sessions are unaffected.
+     */
+    private void establishInterface(final VpnService service) throws Exception {
+        if (runningTunnels.isEmpty()) {
+            wgMuxSetTun(-1);
+            return;
+        }
+        final VpnService.Builder builder = service.getBuilder();
+        final StringBuilder session = new StringBuilder();
+        final Set<IPCidr> addresses = new ArraySet<>();
+        final Set<InetAddress> dnses = new ArraySet<>();
+        final Set<IPCidr> routes = new HashSet<>();
+        int mtu = Integer.MAX_VALUE;
+        for (final Map.Entry<Tunnel, RunningTunnel> entry : runningTunnels.entrySet()) {
+            final Config config = entry.getValue().config;
+            if (session.length() > 0)
+                session.append(", ");
+            session.append(entry.getKey().getName());
+
+            for (final IPCidr addr : config.getInterface().getAddresses()) {
+                if (addresses.add(addr))
+                    builder.addAddress(addr.getAddress(), addr.getCidr());
+            }
+
+            for (final InetAddress addr : config.getInterface().getDnses()) {
+                if (dnses.add(addr))
+                    builder.addDnsServer(addr.getHostAddress());
+            }
+
+            for (final Peer peer : config.getPeers())
+                Collections.addAll(routes, peer.getAllowedIPs());
+
+            mtu = Math.min(mtu, getMtu(config));
+        }
+
+        // Each route costs time in establish() and a kernel routing table entry, so merge them.
+        final List<IPCidr> aggregatedRoutes = IPCidrSet.aggregate(routes);
+        Log.d(TAG, "Aggregated " + routes.size() + " routes into " + aggregatedRoutes.size() +
+                " (" + (routes.size() - aggregatedRoutes.size()) + " eliminated)");
+        for (final IPCidr route : aggregatedRoutes)
+            builder.addRoute(route.getAddress(), route.getCidr());
+        builder.setSession(session.toString());
+
+        final Intent configureIntent = new Intent(context, MainActivity.class);
+        configureIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        builder.setConfigureIntent(PendingIntent.getActivity(context, 0, configureIntent, 0));
+
+        builder.setMtu(mtu);
+
+        builder.setBlocking(true);
+        try (final ParcelFileDescriptor tun = builder.establish()) {
+            if (tun == null)
+                throw new Exception("Unable to create tun device");
+            final int ret = wgMuxSetTun(tun.detachFd());
+            if (ret < 0)
+                throw new Exception("Unable to attach tun device (wgMuxSetTun return " + ret + ')');
         }
-        return Collections.emptySet();
     }
 
     @Override
-    public State getState(final Tunnel tunnel) {
-        return currentTunnel == tunnel ? State.UP : State.DOWN;
+    public synchronized State getState(final Tunnel tunnel) {
+        return runningTunnels.containsKey(tunnel) ? State.UP : State.DOWN;
     }
 
     @Override
-    public Statistics getStatistics(final Tunnel tunnel) {
-        return new Statistics();
+    public synchronized Statistics getStatistics(final Tunnel tunnel) throws Exception {
+        final RunningTunnel running = runningTunnels.get(tunnel);
+        if (running == null)
+            return new Statistics();
+        final String response = wgGetConfig(running.handle);
+        if (response == null)
+            throw new Exception("Unable to read tunnel statistics");
+        return UapiConfig.parseStatistics(response);
     }
 
     @Override
-    public State setState(final Tunnel tunnel, State state) throws Exception {
+    public synchronized State setState(final Tunnel tunnel, State state) throws Exception {
         final State originalState = getState(tunnel);
         if (state == State.TOGGLE)
             state = originalState == State.UP ? State.DOWN : State.UP;
         if (state == originalState)
             return originalState;
-        if (state == State.UP && currentTunnel != null)
-            throw new IllegalStateException("Only one userspace tunnel can run at a time");
         Log.d(TAG, "Changing tunnel " + tunnel.getName() + " to state " + state);
         setStateInternal(tunnel, tunnel.getConfig(), state);
         return getState(tunnel);
@@ -133,85 +275,47 @@ public final class GoBackend implements Backend {
                 throw new Exception("Unable to start Android VPN service", e);
             }
 
-            if (currentTunnelHandle != -1) {
+            if (runningTunnels.containsKey(tunnel)) {
                 Log.w(TAG, "Tunnel already up");
                 return;
             }
 
-            // Build config
-            final Interface iface = config.getInterface();
-            final String goConfig;
-            try (final Formatter fmt = new Formatter(new StringBuilder())) {
-                fmt.format("replace_peers=true\n");
-                if (iface.getPrivateKey() != null)
-                    fmt.format("private_key=%s\n", KeyEncoding.keyToHex(KeyEncoding.keyFromBase64(iface.getPrivateKey())));
-                if (iface.getListenPort() != 0)
-                    fmt.format("listen_port=%d\n", config.getInterface().getListenPort());
-                for (final Peer peer : config.getPeers()) {
-                    if (peer.getPublicKey() != null)
-                        fmt.format("public_key=%s\n", KeyEncoding.keyToHex(KeyEncoding.keyFromBase64(peer.getPublicKey())));
-                    if (peer.getPreSharedKey() != null)
-                        fmt.format("preshared_key=%s\n", KeyEncoding.keyToHex(KeyEncoding.keyFromBase64(peer.getPreSharedKey())));
-                    if (peer.getEndpoint() != null)
-                        fmt.format("endpoint=%s\n", peer.getResolvedEndpointString());
-                    if (peer.getPersistentKeepalive() != 0)
-                        fmt.format("persistent_keepalive_interval=%d\n", peer.getPersistentKeepalive());
-                    for (final IPCidr addr : peer.getAllowedIPs()) {
-                        fmt.format("allowed_ip=%s\n", addr.toString());
-                    }
-                }
-                goConfig = fmt.toString();
-            }
-
-            // Create the vpn tunnel with android API
-            final VpnService.Builder builder = service.getBuilder();
-            builder.setSession(tunnel.getName());
+            // Build config, resolving all endpoints at once.
+            final String goConfig = UapiConfig.full(config, resolver.resolve(config));
 
-            final Intent configureIntent = new Intent(context, MainActivity.class);
-            configureIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-            builder.setConfigureIntent(PendingIntent.getActivity(context, 0, configureIntent, 0));
+            Log.d(TAG, "Go backend v" + wgVersion());
+            final int handle = wgMuxTurnOn(tunnel.getName(), getMtu(config), goConfig);
+            if (handle < 0)
+                throw new Exception("Unable to turn tunnel on (wgMuxTurnOn return " + handle + ')');
 
-            for (final IPCidr addr : config.getInterface().getAddresses())
-                builder.addAddress(addr.getAddress(), addr.getCidr());
+            protectSockets(service, handle);
 
-            for (final InetAddress addr : config.getInterface().getDnses())
-                builder.addDnsServer(addr.getHostAddress());
-
-            for (final Peer peer : config.getPeers()) {
-                for (final IPCidr addr : peer.getAllowedIPs())
-                    builder.addRoute(addr.getAddress(), addr.getCidr());
-            }
-
-            int mtu = config.getInterface().getMtu();
-            if (mtu == 0)
-                mtu = 1280;
-            builder.setMtu(mtu);
-
-            builder.setBlocking(true);
-            try (final ParcelFileDescriptor tun = builder.establish()) {
-                if (tun == null)
-                    throw new Exception("Unable to create tun device");
-                Log.d(TAG, "Go backend v" + wgVersion());
-                currentTunnelHandle = wgTurnOn(tunnel.getName(), tun.detachFd(), goConfig);
+            // Add this tunnel's addresses and routes to the shared interface.
+            runningTunnels.put(tunnel, new RunningTunnel(handle, config));
+            try {
+                establishInterface(service);
+            } catch (final Exception e) {
+                runningTunnels.remove(tunnel);
+                wgTurnOff(handle);
+                throw e;
             }
-            if (currentTunnelHandle < 0)
-                throw new Exception("Unable to turn tunnel on (wgTurnOn return " + currentTunnelHandle + ')');
-
-            currentTunnel = tunnel;
-
-            service.protect(wgGetSocketV4(currentTunnelHandle));
-            service.protect(wgGetSocketV6(currentTunnelHandle));
         } else {
             Log.i(TAG, "Bringing tunnel down");
 
-            if (currentTunnelHandle == -1) {
+            final RunningTunnel running = runningTunnels.remove(tunnel);
+            if (running == null) {
                 Log.w(TAG, "Tunnel already down");
                 return;
             }
 
-            wgTurnOff(currentTunnelHandle);
-            currentTunnel = null;
-            currentTunnelHandle = -1;
+            wgTurnOff(running.handle);
+
+            // Without a service there is no interface left to update.
+            final VpnService service = vpnService.getNow(null);
+            if (service != null)
+                establishInterface(service);
+            else
+                wgMuxSetTun(-1);
         }
     }
 
@@ -220,7 +324,23 @@ public final class GoBackend implements Backend {
         context.startService(new Intent(context, VpnService.class));
     }
 
+    private static final class RunningTunnel {
+        private final int handle;
+        private Config config;
+
+        private RunningTunnel(final int handle, final Config config) {
+            this.handle = handle;
+            this.config = config;
+        }
+    }
+
     public static class VpnService extends android.net.VpnService {
+        @Override
+        protected void dump(final FileDescriptor fd, final PrintWriter writer,
+                            final String[] args) {
+            StartupTrace.dump(writer);
+        }
+
         public Builder getBuilder() {
             return new Builder();
         }
@@ -0,0 +1,278 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: GPL-2.0-or-later
+ */
+
+package com.wireguard.android.backend;
+
+import com.wireguard.android.model.Tunnel.Statistics;
+import com.wireguard.config.Config;
+import com.wireguard.config.IPCidr;
+import com.wireguard.config.Interface;
+import com.wireguard.config.Peer;
+import com.wireguard.crypto.KeyEncoding;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Builds the settings strings understood by the userspace implementation's configuration
+ * protocol (UAPI), either for a whole configuration or for the changes between two of them, and
+ * reads statistics back out of its responses.
+ */
+
+final class UapiConfig {
+    private static final char[] ZERO_KEY = new char[KeyEncoding.KEY_LENGTH_HEX];
+
+    static {
+        Arrays.fill(ZERO_KEY, '0');
+    }
+
+    private final Map<String, InetAddress> endpoints;
+    private final char[] hexKey = new char[KeyEncoding.KEY_LENGTH_HEX];
+    private final StringBuilder sb = new StringBuilder();
+
+    private UapiConfig(final Map<String, InetAddress> endpoints) {
+        // Instances only hold scratch space for a single call.
+        this.endpoints = endpoints;
+    }
+
+    /**
+     * Build the settings that move a running device from one configuration to another. Peers are
+     * matched by public key: new peers are added, missing peers are removed, and changed peers
+     * are updated in place, so sessions with unchanged peers are not disturbed.
+     *
+     * @param oldConfig The configuration currently applied to the device.
+     * @param newConfig The configuration to apply.
+     * @param endpoints The address of each endpoint host name in the new configuration.
+     * @return The settings to send, which are empty if nothing needs to change.
+     */
+    static String diff(final Config oldConfig, final Config newConfig,
+                       final Map<String, InetAddress> endpoints) throws UnknownHostException {
+        return new UapiConfig(endpoints).appendDiff(oldConfig, newConfig).toString();
+    }
+
+    /**
+     * Build the settings that replace the entire configuration of a device.
+     *
+     * @param config    The configuration to apply.
+     * @param endpoints The address of each endpoint host name in the configuration.
+     * @return The settings to send.
+     */
+    static String full(final Config config, final Map<String, InetAddress> endpoints)
+            throws UnknownHostException {
+        return new UapiConfig(endpoints).appendFull(config).toString();
+    }
+
+    /**
+     * Determine whether the difference between two configurations involves properties of the
+     * Android VPN interface itself (addresses, DNS servers, MTU, or routes), which can only be
+     * changed by establishing a new interface.
+     */
+    static boolean needsNewInterface(final Config oldConfig, final Config newConfig) {
+        final Interface oldIface = oldConfig.getInterface();
+        final Interface newIface = newConfig.getInterface();
+        return oldIface.getMtu() != newIface.getMtu()
+                || !Arrays.equals(oldIface.getDnses(), newIface.getDnses())
+                || !toStrings(oldIface.getAddresses()).equals(toStrings(newIface.getAddresses()))
+                || !getRoutes(oldConfig).equals(getRoutes(newConfig));
+    }
+
+    /**
+     * Collect per-peer statistics from the response to a UAPI get operation.
+     *
+     * @param response The key=value lines describing the device.
+     * @return The statistics for each peer in the response.
+     */
+    static Statistics parseStatistics(final String response) {
+        final Statistics statistics = new Statistics();
+        final byte[] key = new byte[KeyEncoding.KEY_LENGTH];
+        String publicKey = null;
+        String endpoint = null;
+        long handshakeSeconds = 0;
+        long handshakeNanos = 0;
+        long rxBytes = 0;
+        long txBytes = 0;
+        int lineStart = 0;
+        while (lineStart < response.length()) {
+            int lineEnd = response.indexOf('\n', lineStart);
+            if (lineEnd == -1)
+                lineEnd = response.length();
+            final int equals = response.indexOf('=', lineStart);
+            if (equals != -1 && equals < lineEnd) {
+                final String name = response.substring(lineStart, equals);
+                final String value = response.substring(equals + 1, lineEnd);
+                switch (name) {
+                    case "public_key":
+                        if (publicKey != null)
+                            statistics.add(publicKey, rxBytes, txBytes,
+                                    handshakeSeconds * 1000 + handshakeNanos / 1000000, endpoint);
+                        KeyEncoding.keyFromHex(value, 0, key, 0);
+                        publicKey = KeyEncoding.keyToBase64(key);
+                        endpoint = null;
+                        handshakeSeconds = handshakeNanos = rxBytes = txBytes = 0;
+                        break;
+                    case "endpoint":
+                        endpoint = value;
+                        break;
+                    case "last_handshake_time_sec":
+                        handshakeSeconds = Long.parseLong(value);
+                        break;
+                    case "last_handshake_time_nsec":
+                        handshakeNanos = Long.parseLong(value);
+                        break;
+                    case "rx_bytes":
+                        rxBytes = Long.parseLong(value);
+                        break;
+                    case "tx_bytes":
+                        txBytes = Long.parseLong(value);
+                        break;
+                    default:
+                        break;
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+        if (publicKey != null)
+            statistics.add(publicKey, rxBytes, txBytes,
+                    handshakeSeconds * 1000 + handshakeNanos / 1000000, endpoint);
+        return statistics;
+    }
+
+    private static Set<IPCidr> getRoutes(final Config config) {
+        final Set<IPCidr> routes = new HashSet<>();
+        for (final Peer peer : config.getPeers())
+            Collections.addAll(routes, peer.getAllowedIPs());
+        return routes;
+    }
+
+    private static boolean sameEndpoint(final InetSocketAddress a, final InetSocketAddress b) {
+        if (a == null || b == null)
+            return a == b;
+        // Compare what the user wrote, since either side may or may not have been resolved.
+        return a.getPort() == b.getPort() && a.getHostString().equals(b.getHostString());
+    }
+
+    private static boolean sameString(final String a, final String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static Set<String> toStrings(final Object[] items) {
+        final Set<String> strings = new HashSet<>(items.length);
+        for (final Object item : items)
+            strings.add(item.toString());
+        return strings;
+    }
+
+    private StringBuilder appendDiff(final Config oldConfig, final Config newConfig)
+            throws UnknownHostException {
+        final Interface oldIface = oldConfig.getInterface();
+        final Interface newIface = newConfig.getInterface();
+        if (!sameString(oldIface.getPrivateKey(), newIface.getPrivateKey()))
+            appendKey("private_key=", newIface.getPrivateKey());
+        if (oldIface.getListenPort() != newIface.getListenPort())
+            sb.append("listen_port=").append(newIface.getListenPort()).append('\n');
+
+        final Map<String, Peer> oldPeers = new HashMap<>(oldConfig.getPeers().size());
+        for (final Peer peer : oldConfig.getPeers()) {
+            if (peer.getPublicKey() != null)
+                oldPeers.put(peer.getPublicKey(), peer);
+        }
+        for (final Peer newPeer : newConfig.getPeers()) {
+            if (newPeer.getPublicKey() == null)
+                continue;
+            final Peer oldPeer = oldPeers.remove(newPeer.getPublicKey());
+            if (oldPeer == null)
+                appendPeer(newPeer);
+            else
+                appendPeerDiff(oldPeer, newPeer);
+        }
+        for (final String publicKey : oldPeers.keySet()) {
+            appendKey("public_key=", publicKey);
+            sb.append("remove=true\n");
+        }
+        return sb;
+    }
+
+    private void appendEndpoint(final InetSocketAddress endpoint) throws UnknownHostException {
+        final InetAddress address = endpoints.get(endpoint.getHostString());
+        if (address == null)
+            throw new UnknownHostException(endpoint.getHostString());
+        sb.append("endpoint=");
+        if (address instanceof Inet6Address)
+            sb.append('[').append(address.getHostAddress()).append(']');
+        else
+            sb.append(address.getHostAddress());
+        sb.append(':').append(endpoint.getPort()).append('\n');
+    }
+
+    private StringBuilder appendFull(final Config config) throws UnknownHostException {
+        final Interface iface = config.getInterface();
+        sb.append("replace_peers=true\n");
+        if (iface.getPrivateKey() != null)
+            appendKey("private_key=", iface.getPrivateKey());
+        if (iface.getListenPort() != 0)
+            sb.append("listen_port=").append(iface.getListenPort()).append('\n');
+        for (final Peer peer : config.getPeers()) {
+            if (peer.getPublicKey() != null)
+                appendPeer(peer);
+        }
+        return sb;
+    }
+
+    /**
+     * Append a key in hex, or the all-zero key (which clears the setting) if it is null.
+     */
+    private void appendKey(final String prefix, final String base64Key) {
+        if (base64Key != null)
+            KeyEncoding.base64ToHex(base64Key, 0, hexKey, 0);
+        sb.append(prefix).append(base64Key != null ? hexKey : ZERO_KEY).append('\n');
+    }
+
+    private void appendPeer(final Peer peer) throws UnknownHostException {
+        appendKey("public_key=", peer.getPublicKey());
+        if (peer.getPreSharedKey() != null)
+            appendKey("preshared_key=", peer.getPreSharedKey());
+        if (peer.getEndpoint() != null)
+            appendEndpoint(peer.getEndpoint());
+        if (peer.getPersistentKeepalive() != 0)
+            sb.append("persistent_keepalive_interval=")
+                    .append(peer.getPersistentKeepalive()).append('\n');
+        for (final IPCidr addr : peer.getAllowedIPs())
+            addr.appendTo(sb.append("allowed_ip=")).append('\n');
+    }
+
+    private void appendPeerDiff(final Peer oldPeer, final Peer newPeer) throws UnknownHostException {
+        final int start = sb.length();
+        appendKey("public_key=", newPeer.getPublicKey());
+        sb.append("update_only=true\n");
+        final int header = sb.length();
+        if (!sameString(oldPeer.getPreSharedKey(), newPeer.getPreSharedKey()))
+            appendKey("preshared_key=", newPeer.getPreSharedKey());
+        // An endpoint cannot be unset, so a removed endpoint keeps the current one.
+        if (newPeer.getEndpoint() != null &&
+                !sameEndpoint(oldPeer.getEndpoint(), newPeer.getEndpoint()))
+            appendEndpoint(newPeer.getEndpoint());
+        if (oldPeer.getPersistentKeepalive() != newPeer.getPersistentKeepalive())
+            sb.append("persistent_keepalive_interval=")
+                    .append(newPeer.getPersistentKeepalive()).append('\n');
+        final IPCidr[] allowedIPs = newPeer.getAllowedIPs();
+        if (!new HashSet<>(Arrays.asList(oldPeer.getAllowedIPs()))
+                .equals(new HashSet<>(Arrays.asList(allowedIPs)))) {
+            sb.append("replace_allowed_ips=true\n");
+            for (final IPCidr addr : allowedIPs)
+                addr.appendTo(sb.append("allowed_ip=")).append('\n');
+        }
+        // Leave unchanged peers out entirely.
+        if (sb.length() == header)
+            sb.setLength(start);
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: GPL-2.0-or-later
+ */
+
+package com.wireguard.android.backend;
+
+import android.os.SystemClock;
+import android.support.v4.util.ArrayMap;
+
+import com.wireguard.android.Application;
+import com.wireguard.android.model.Tunnel.Statistics;
+import com.wireguard.android.util.RootShell.LineHandler;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects the state of every kernel WireGuard interface with a single {@code wg show all dump},
+ * and shares the result between all queries made within a short period. The output is parsed one
+ * line at a time as it is read from the root shell, so it is never held in memory as a whole.
+ */
+
+final class WgDumpCollector {
+    private static final int INTERFACE_FIELDS = 5;
+    private static final int PEER_FIELDS = 9;
+
+    private final long maxAge;
+    private Map<String, Statistics> interfaces;
+    private long refreshTime;
+
+    WgDumpCollector(final long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Get the statistics for a running interface.
+     *
+     * @return The statistics, or null if the interface is not running.
+     */
+    synchronized Statistics getStatistics(final String name) throws Exception {
+        return refreshIfStale().get(name);
+    }
+
+    /**
+     * @return The names of all running interfaces.
+     */
+    synchronized Set<String> getInterfaces() throws Exception {
+        return Collections.unmodifiableSet(refreshIfStale().keySet());
+    }
+
+    /**
+     * Forget the last result, so the next query runs {@code wg} again. This must be called
+     * whenever interfaces may have been brought up or down.
+     */
+    synchronized void invalidate() {
+        interfaces = null;
+    }
+
+    private Map<String, Statistics> refreshIfStale() throws Exception {
+        if (interfaces != null && SystemClock.elapsedRealtime() - refreshTime <= maxAge)
+            return interfaces;
+        Application.getToolsInstaller().ensureToolsAvailable();
+        final DumpParser parser = new DumpParser();
+        // The dump contains private and preshared keys, so keep it out of the log.
+        final int ret = Application.getRootShell().run(parser, "wg show all dump", false);
+        if (ret != 0)
+            throw new IOException("Unable to read interface state (wg returned " + ret + ')');
+        if (parser.error != null)
+            throw new IOException("Unable to parse interface state", parser.error);
+        interfaces = parser.interfaces;
+        refreshTime = SystemClock.elapsedRealtime();
+        return interfaces;
+    }
+
+    /**
+     * Parser for the lines of {@code wg show all dump}, fed by the root shell as they are read.
+     * Errors are saved for later instead of being thrown, so the shell still reads the rest of the
+     * command's output.
+     */
+    private static final class DumpParser implements LineHandler {
+        private final int[] fieldEnds = new int[PEER_FIELDS];
+        private final Map<String, Statistics> interfaces = new ArrayMap<>();
+        private RuntimeException error;
+
+        private static long parseLong(final String line, final int start, final int end) {
+            if (start == end)
+                throw new NumberFormatException("Empty number in: " + line);
+            long value = 0;
+            for (int i = start; i < end; ++i) {
+                final char c = line.charAt(i);
+                if (c < '0' || c > '9')
+                    throw new NumberFormatException("Invalid number in: " + line);
+                value = value * 10 + (c - '0');
+            }
+            return value;
+        }
+
+        @Override
+        public void onLine(final String line) {
+            if (error != null)
+                return;
+            try {
+                parseLine(line);
+            } catch (final IllegalArgumentException e) {
+                error = e;
+            }
+        }
+
+        private void parseLine(final String line) {
+            int fields = 0;
+            int start = 0;
+            while (fields < PEER_FIELDS) {
+                final int tab = line.indexOf('\t', start);
+                fieldEnds[fields++] = tab == -1 ? line.length() : tab;
+                if (tab == -1)
+                    break;
+                start = tab + 1;
+            }
+            if (fieldEnds[fields - 1] != line.length())
+                throw new IllegalArgumentException("Too many fields in: " + line);
+            final String name = line.substring(0, fieldEnds[0]);
+            if (fields == INTERFACE_FIELDS) {
+                // The private key in this line is skipped without being copied anywhere.
+                if (!interfaces.containsKey(name))
+                    interfaces.put(name, new Statistics());
+            } else if (fields == PEER_FIELDS) {
+                Statistics statistics = interfaces.get(name);
+                if (statistics == null) {
+                    statistics = new Statistics();
+                    interfaces.put(name, statistics);
+                }
+                final String publicKey = line.substring(fieldEnds[0] + 1, fieldEnds[1]);
+                final String endpoint = line.substring(fieldEnds[2] + 1, fieldEnds[3]);
+                final long handshake = parseLong(line, fieldEnds[4] + 1, fieldEnds[5]);
+                final long rxBytes = parseLong(line, fieldEnds[5] + 1, fieldEnds[6]);
+                final long txBytes = parseLong(line, fieldEnds[6] + 1, fieldEnds[7]);
+                statistics.add(publicKey, rxBytes, txBytes, handshake * 1000,
+                        "(none)".equals(endpoint) ? null : endpoint);
+            } else {
+                throw new IllegalArgumentException("Unexpected number of fields in: " + line);
+            }
+        }
+    }
+}
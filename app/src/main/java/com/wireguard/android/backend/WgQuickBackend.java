@@ -17,22 +17,22 @@ import com.wireguard.config.Config;
 
 import java.io.File;
 import java.io.FileOutputStream;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
-
-import java9.util.stream.Collectors;
-import java9.util.stream.Stream;
+import java.util.concurrent.ExecutionException;
 
 /**
  * WireGuard backend that uses {@code wg-quick} to implement tunnel configuration.
  */
 
 public final class WgQuickBackend implements Backend {
+    // Long enough for one refresh of every tunnel to share a single dump.
+    private static final long DUMP_MAX_AGE = 500;
     private static final String TAG = "WireGuard/" + WgQuickBackend.class.getSimpleName();
 
+    private final WgDumpCollector collector = new WgDumpCollector(DUMP_MAX_AGE);
     private final File localTemporaryDir;
 
     public WgQuickBackend(final Context context) {
@@ -69,18 +69,13 @@ public final class WgQuickBackend implements Backend {
 
     @Override
     public Set<String> enumerate() {
-        final List<String> output = new ArrayList<>();
         // Don't throw an exception here or nothing will show up in the UI.
         try {
-            Application.getToolsInstaller().ensureToolsAvailable();
-            if (Application.getRootShell().run(output, "wg show interfaces") != 0 || output.isEmpty())
-                return Collections.emptySet();
+            return collector.getInterfaces();
         } catch (final Exception e) {
             Log.w(TAG, "Unable to enumerate running tunnels", e);
             return Collections.emptySet();
         }
-        // wg puts all interface names on the same line. Split them into separate elements.
-        return Stream.of(output.get(0).split(" ")).collect(Collectors.toUnmodifiableSet());
     }
 
     @Override
@@ -89,8 +84,9 @@ public final class WgQuickBackend implements Backend {
     }
 
     @Override
-    public Statistics getStatistics(final Tunnel tunnel) {
-        return new Statistics();
+    public Statistics getStatistics(final Tunnel tunnel) throws Exception {
+        final Statistics statistics = collector.getStatistics(tunnel.getName());
+        return statistics != null ? statistics : new Statistics();
     }
 
     @Override
@@ -110,13 +106,23 @@ public final class WgQuickBackend implements Backend {
             throws Exception {
         final File tempFile = new File(localTemporaryDir, tunnel.getName() + ".conf");
         try (final FileOutputStream stream = new FileOutputStream(tempFile, false)) {
-            stream.write(config.toString().getBytes(StandardCharsets.UTF_8));
+            config.writeWgQuickTo(stream);
         }
         String command = String.format("wg-quick %s '%s'",
                 state.toString().toLowerCase(), tempFile.getAbsolutePath());
         if (state == State.UP)
             command = "cat /sys/module/wireguard/version && " + command;
-        final int result = Application.getRootShell().run(null, command);
+        final int result;
+        try {
+            // Tunnels changed at the same time, such as when restoring, share one round trip.
+            result = Application.getRootShell().runAsync(command).toCompletableFuture().get()
+                    .getExitValue();
+        } catch (final ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } finally {
+            // Whatever happened, the old dump no longer describes the running interfaces.
+            collector.invalidate();
+        }
         // noinspection ResultOfMethodCallIgnored
         tempFile.delete();
         if (result != 0)
@@ -10,23 +10,34 @@ import android.content.Context;
 import android.util.Log;
 
 import com.wireguard.config.Config;
+import com.wireguard.config.ConfigSnapshot;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.io.OutputStream;
 import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
 import java9.util.stream.Collectors;
 import java9.util.stream.Stream;
 
 /**
- * Configuration store that uses a {@code wg-quick}-style file for each configured tunnel.
+ * Configuration store that uses a {@code wg-quick}-style file for each configured tunnel. A
+ * binary snapshot of each parsed configuration is cached alongside it, so loading a tunnel that
+ * has not changed skips the text parser. The snapshot records the size, modification time, and
+ * CRC32 of the file it was made from, and is ignored if any of them no longer match.
  */
 
 public final class FileConfigStore implements ConfigStore {
+    private static final String SNAPSHOT_DIRECTORY = "config-snapshots";
     private static final String TAG = "WireGuard/" + FileConfigStore.class.getSimpleName();
 
     private final Context context;
@@ -35,15 +46,35 @@ public final class FileConfigStore implements ConfigStore {
         this.context = context;
     }
 
+    private static long checksum(final byte[] bytes) {
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return crc.getValue();
+    }
+
+    private static byte[] readFile(final File file) throws IOException {
+        try (final FileInputStream stream = new FileInputStream(file)) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) file.length());
+            final byte[] buffer = new byte[4096];
+            int count;
+            while ((count = stream.read(buffer)) != -1)
+                bytes.write(buffer, 0, count);
+            return bytes.toByteArray();
+        }
+    }
+
     @Override
     public Config create(final String name, final Config config) throws IOException {
         Log.d(TAG, "Creating configuration for tunnel " + name);
         final File file = fileFor(name);
         if (!file.createNewFile())
             throw new IOException("Configuration file " + file.getName() + " already exists");
-        try (final FileOutputStream stream = new FileOutputStream(file, false)) {
-            stream.write(config.toString().getBytes(StandardCharsets.UTF_8));
+        final CRC32 crc = new CRC32();
+        try (final OutputStream stream =
+                     new CheckedOutputStream(new FileOutputStream(file, false), crc)) {
+            config.writeTo(stream);
         }
+        writeSnapshot(name, file, crc.getValue(), config);
         return config;
     }
 
@@ -51,10 +82,17 @@ public final class FileConfigStore implements ConfigStore {
     public void delete(final String name) throws IOException {
         Log.d(TAG, "Deleting configuration for tunnel " + name);
         final File file = fileFor(name);
+        deleteSnapshot(name);
         if (!file.delete())
             throw new IOException("Cannot delete configuration file " + file.getName());
     }
 
+    private void deleteSnapshot(final String name) {
+        final File snapshot = snapshotFor(name);
+        if (snapshot.exists() && !snapshot.delete())
+            Log.w(TAG, "Couldn't delete snapshot for " + name);
+    }
+
     @Override
     public Set<String> enumerate() {
         return Stream.of(context.fileList())
@@ -69,8 +107,34 @@ public final class FileConfigStore implements ConfigStore {
 
     @Override
     public Config load(final String name) throws IOException {
-        try (final FileInputStream stream = new FileInputStream(fileFor(name))) {
-            return Config.from(stream);
+        final File file = fileFor(name);
+        final byte[] contents = readFile(file);
+        final Config snapshot = readSnapshot(name, file, contents);
+        if (snapshot != null)
+            return snapshot;
+        final Config config = Config.from(new ByteArrayInputStream(contents));
+        writeSnapshot(name, file, checksum(contents), config);
+        return config;
+    }
+
+    /**
+     * Read the cached snapshot of a configuration file.
+     *
+     * @return The configuration, or null if there is no usable snapshot for these contents.
+     */
+    private Config readSnapshot(final String name, final File file, final byte[] contents) {
+        final File snapshot = snapshotFor(name);
+        if (!snapshot.isFile())
+            return null;
+        try (final DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(readFile(snapshot)))) {
+            if (in.readLong() != contents.length || in.readLong() != file.lastModified() ||
+                    in.readLong() != checksum(contents))
+                return null;
+            return ConfigSnapshot.read(in);
+        } catch (final IOException e) {
+            Log.w(TAG, "Ignoring unusable snapshot for " + name, e);
+            return null;
         }
     }
 
@@ -86,6 +150,11 @@ public final class FileConfigStore implements ConfigStore {
                 Log.w(TAG, "Couldn't delete marker file for new name " + replacement);
             throw new IOException("Cannot rename configuration file " + file.getName());
         }
+        // Renaming keeps the modification time, so the old snapshot is still valid.
+        deleteSnapshot(replacement);
+        final File snapshot = snapshotFor(name);
+        if (snapshot.exists() && !snapshot.renameTo(snapshotFor(replacement)))
+            deleteSnapshot(name);
     }
 
     @Override
@@ -94,9 +163,56 @@ public final class FileConfigStore implements ConfigStore {
         final File file = fileFor(name);
         if (!file.isFile())
             throw new FileNotFoundException("Configuration file " + file.getName() + " not found");
-        try (final FileOutputStream stream = new FileOutputStream(file, false)) {
-            stream.write(config.toString().getBytes(StandardCharsets.UTF_8));
+        final CRC32 crc = new CRC32();
+        try (final OutputStream stream =
+                     new CheckedOutputStream(new FileOutputStream(file, false), crc)) {
+            config.writeTo(stream);
         }
+        writeSnapshot(name, file, crc.getValue(), config);
         return config;
     }
+
+    /**
+     * Snapshots live in the files directory next to the configurations, where the system does not
+     * evict them. They hold the same private keys as the configuration files, so they are a second
+     * copy of every secret: each snapshot must be deleted or renamed along with its file, as
+     * {@link #delete(String)} and {@link #rename(String, String)} do.
+     */
+    private File snapshotFor(final String name) {
+        return new File(new File(context.getFilesDir(), SNAPSHOT_DIRECTORY), name + ".bin");
+    }
+
+    /**
+     * Cache the parsed form of a configuration file. Failures are only logged, since the file
+     * itself can always be parsed again.
+     */
+    private void writeSnapshot(final String name, final File file, final long checksum,
+                               final Config config) {
+        final File snapshot = snapshotFor(name);
+        final File directory = snapshot.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "Couldn't create snapshot directory");
+            return;
+        }
+        final File temporary = new File(directory, name + ".tmp");
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(file.length());
+            out.writeLong(file.lastModified());
+            out.writeLong(checksum);
+            ConfigSnapshot.write(config, out);
+            out.flush();
+            try (final FileOutputStream stream = new FileOutputStream(temporary, false)) {
+                bytes.writeTo(stream);
+            }
+            if (!temporary.renameTo(snapshot))
+                throw new IOException("Cannot rename " + temporary.getName());
+        } catch (final IOException | RuntimeException e) {
+            Log.w(TAG, "Couldn't write snapshot for " + name, e);
+            if (temporary.exists() && !temporary.delete())
+                Log.w(TAG, "Couldn't delete " + temporary.getName());
+            deleteSnapshot(name);
+        }
+    }
 }
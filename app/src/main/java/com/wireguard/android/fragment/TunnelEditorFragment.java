@@ -11,6 +11,7 @@ import android.content.Context;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.design.widget.Snackbar;
+import android.support.v7.app.AlertDialog;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -27,7 +28,14 @@ import com.wireguard.android.databinding.TunnelEditorFragmentBinding;
 import com.wireguard.android.model.Tunnel;
 import com.wireguard.android.model.TunnelManager;
 import com.wireguard.android.util.ExceptionLoggers;
+import com.wireguard.config.AllowedIPsIndex;
+import com.wireguard.config.AllowedIPsIndex.Overlap;
 import com.wireguard.config.Config;
+import com.wireguard.config.Peer;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * Fragment for editing a WireGuard configuration.
@@ -41,6 +49,74 @@ public class TunnelEditorFragment extends BaseFragment {
     private TunnelEditorFragmentBinding binding;
     private Tunnel tunnel;
 
+    /**
+     * @return A description of an overlap that does not depend on the peers' positions, to
+     * compare overlaps between two versions of a configuration.
+     */
+    private static String getOverlapKey(final Overlap overlap) {
+        return overlap.getWinningCidr() + " " + overlap.getWinningPeer().getPublicKey() + ' ' +
+                overlap.getShadowedCidr() + ' ' + overlap.getShadowedPeer().getPublicKey();
+    }
+
+    /**
+     * @return The position of a peer in the editor, counting from 1.
+     */
+    private static int getPeerNumber(final Config config, final Peer peer) {
+        final List<Peer> peers = config.getPeers();
+        for (int i = 0; i < peers.size(); ++i) {
+            if (peers.get(i) == peer)
+                return i + 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Check the AllowedIPs of the peers before saving. A block listed by two peers is an error,
+     * since WireGuard would silently give it to the last one; a block inside another peer's block
+     * is legitimate but easy to get wrong, so the user is asked to confirm it, but only when the
+     * saved configuration does not already have the same overlap.
+     *
+     * @return Whether the configuration can be saved right away.
+     */
+    private boolean checkAllowedIPs(final Config config) {
+        final List<Overlap> overlaps = new AllowedIPsIndex(config).getOverlaps();
+        if (overlaps.isEmpty())
+            return true;
+        final Set<String> savedOverlaps = new HashSet<>();
+        final Config savedConfig = tunnel != null ? tunnel.getConfig() : null;
+        if (savedConfig != null) {
+            for (final Overlap overlap : new AllowedIPsIndex(savedConfig).getOverlaps())
+                savedOverlaps.add(getOverlapKey(overlap));
+        }
+        final StringBuilder details = new StringBuilder();
+        for (final Overlap overlap : overlaps) {
+            final int shadowedPeer = getPeerNumber(config, overlap.getShadowedPeer());
+            final int winningPeer = getPeerNumber(config, overlap.getWinningPeer());
+            if (overlap.isDuplicate()) {
+                final String error = getString(R.string.allowed_ips_duplicate,
+                        overlap.getShadowedCidr(), shadowedPeer, winningPeer);
+                Log.e(TAG, overlap.toString());
+                Snackbar.make(binding.mainContainer, error, Snackbar.LENGTH_LONG).show();
+                return false;
+            }
+            if (savedOverlaps.contains(getOverlapKey(overlap)))
+                continue;
+            if (details.length() > 0)
+                details.append('\n');
+            details.append(getString(R.string.allowed_ips_overlap, overlap.getWinningCidr(),
+                    winningPeer, overlap.getShadowedCidr(), shadowedPeer));
+        }
+        if (details.length() == 0)
+            return true;
+        new AlertDialog.Builder(getContext())
+                .setTitle(R.string.allowed_ips_overlap_title)
+                .setMessage(details)
+                .setPositiveButton(R.string.save, (dialog, which) -> saveConfig(config))
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+        return false;
+    }
+
     private void onConfigLoaded(final String name, final Config config) {
         binding.setConfig(new Config.Observable(config, name));
     }
@@ -126,20 +202,8 @@ public class TunnelEditorFragment extends BaseFragment {
                     Snackbar.make(binding.mainContainer, error, Snackbar.LENGTH_LONG).show();
                     return false;
                 }
-                if (tunnel == null) {
-                    Log.d(TAG, "Attempting to create new tunnel " + binding.getConfig().getName());
-                    final TunnelManager manager = Application.getTunnelManager();
-                    manager.create(binding.getConfig().getName(), newConfig)
-                            .whenComplete(this::onTunnelCreated);
-                } else if (!tunnel.getName().equals(binding.getConfig().getName())) {
-                    Log.d(TAG, "Attempting to rename tunnel to " + binding.getConfig().getName());
-                    tunnel.setName(binding.getConfig().getName())
-                            .whenComplete((a, b) -> onTunnelRenamed(tunnel, newConfig, b));
-                } else {
-                    Log.d(TAG, "Attempting to save config of " + tunnel.getName());
-                    tunnel.setConfig(newConfig)
-                            .whenComplete((a, b) -> onConfigSaved(tunnel, b));
-                }
+                if (checkAllowedIPs(newConfig))
+                    saveConfig(newConfig);
                 return true;
             default:
                 return super.onOptionsItemSelected(item);
@@ -153,6 +217,25 @@ public class TunnelEditorFragment extends BaseFragment {
         super.onSaveInstanceState(outState);
     }
 
+    private void saveConfig(final Config newConfig) {
+        if (binding == null)
+            return;
+        if (tunnel == null) {
+            Log.d(TAG, "Attempting to create new tunnel " + binding.getConfig().getName());
+            final TunnelManager manager = Application.getTunnelManager();
+            manager.create(binding.getConfig().getName(), newConfig)
+                    .whenComplete(this::onTunnelCreated);
+        } else if (!tunnel.getName().equals(binding.getConfig().getName())) {
+            Log.d(TAG, "Attempting to rename tunnel to " + binding.getConfig().getName());
+            tunnel.setName(binding.getConfig().getName())
+                    .whenComplete((a, b) -> onTunnelRenamed(tunnel, newConfig, b));
+        } else {
+            Log.d(TAG, "Attempting to save config of " + tunnel.getName());
+            tunnel.setConfig(newConfig)
+                    .whenComplete((a, b) -> onConfigSaved(tunnel, b));
+        }
+    }
+
     @Override
     public void onSelectedTunnelChanged(final Tunnel oldTunnel, final Tunnel newTunnel) {
         tunnel = newTunnel;
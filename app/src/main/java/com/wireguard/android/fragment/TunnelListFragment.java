@@ -40,6 +40,7 @@ import com.wireguard.android.databinding.TunnelListFragmentBinding;
 import com.wireguard.android.model.Tunnel;
 import com.wireguard.android.model.TunnelManager;
 import com.wireguard.android.util.AsyncWorker;
+import com.wireguard.android.util.AsyncWorker.Lane;
 import com.wireguard.android.util.ExceptionLoggers;
 import com.wireguard.config.Config;
 
@@ -87,7 +88,7 @@ public class TunnelListFragment extends BaseFragment {
 
         final Collection<CompletableFuture<Tunnel>> futureTunnels = new ArrayList<>();
         final List<Throwable> throwables = new ArrayList<>();
-        Application.getAsyncWorker().supplyAsync(() -> {
+        Application.getAsyncWorker().supplyAsync(Lane.BULK, () -> {
             final String[] columns = {OpenableColumns.DISPLAY_NAME};
             String name = null;
             try (Cursor cursor = contentResolver.query(uri, columns,
@@ -0,0 +1,133 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: GPL-2.0-or-later
+ */
+
+package com.wireguard.android.model;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.wireguard.android.model.Tunnel.State;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Queue;
+
+import java9.util.concurrent.CompletableFuture;
+import java9.util.concurrent.CompletionStage;
+
+/**
+ * Brings a set of tunnels back up after the app or the device restarts. The last-used tunnel
+ * goes first, the configurations of the others are loaded a few at a time ahead of need, and
+ * tunnels are brought up as soon as their configuration is ready, a few at a time, so that a
+ * large restore never fills the interactive lane of the worker. How long each tunnel took to
+ * come up, counted from the start of the restore, is recorded.
+ *
+ * All methods must be called from the main thread.
+ */
+
+final class RestorePlanner {
+    private static final int MAX_CONFIG_LOADS = 2;
+    private static final int MAX_STATE_CHANGES = 2;
+    private static final String TAG = "WireGuard/" + RestorePlanner.class.getSimpleName();
+
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+    private final Map<String, Long> latencies;
+    private final Queue<Tunnel> toLoad = new ArrayDeque<>();
+    private final Queue<Tunnel> toStart = new ArrayDeque<>();
+    private boolean advanceAgain;
+    private boolean advancing;
+    private Throwable failure;
+    private int loading;
+    private int remaining;
+    private long startTime;
+    private int starting;
+
+    /**
+     * @param tunnels   The tunnels to bring up, in the order to bring them up.
+     * @param first     The tunnel to bring up before all others, or null.
+     * @param latencies Where to record, by name, how long each tunnel took to come up.
+     */
+    RestorePlanner(final Collection<Tunnel> tunnels, final Tunnel first,
+                   final Map<String, Long> latencies) {
+        this.latencies = latencies;
+        if (first != null && tunnels.contains(first))
+            toStart.add(first);
+        for (final Tunnel tunnel : tunnels) {
+            if (tunnel != first)
+                toLoad.add(tunnel);
+        }
+        remaining = tunnels.size();
+    }
+
+    private void advance() {
+        // Stages that are already complete call back in right away; loop instead of recursing.
+        if (advancing) {
+            advanceAgain = true;
+            return;
+        }
+        advancing = true;
+        do {
+            advanceAgain = false;
+            while (starting < MAX_STATE_CHANGES && !toStart.isEmpty())
+                bringUp(toStart.remove());
+            while (loading < MAX_CONFIG_LOADS && !toLoad.isEmpty())
+                load(toLoad.remove());
+        } while (advanceAgain);
+        advancing = false;
+    }
+
+    private void bringUp(final Tunnel tunnel) {
+        ++starting;
+        tunnel.setState(State.UP).whenComplete((state, e) -> {
+            --starting;
+            onFinished(tunnel, e);
+            advance();
+        });
+    }
+
+    private void load(final Tunnel tunnel) {
+        ++loading;
+        tunnel.getConfigAsync().whenComplete((config, e) -> {
+            --loading;
+            if (e == null)
+                toStart.add(tunnel);
+            else
+                onFinished(tunnel, e);
+            advance();
+        });
+    }
+
+    private void onFinished(final Tunnel tunnel, final Throwable e) {
+        if (e == null) {
+            final long latency = SystemClock.elapsedRealtime() - startTime;
+            latencies.put(tunnel.getName(), latency);
+            Log.i(TAG, "Restored tunnel " + tunnel.getName() + " in " + latency + " ms");
+        } else if (failure == null) {
+            failure = e;
+        }
+        if (--remaining > 0)
+            return;
+        if (failure == null)
+            completion.complete(null);
+        else
+            completion.completeExceptionally(failure);
+    }
+
+    /**
+     * Start the restore.
+     *
+     * @return A stage that completes once every tunnel has been dealt with, exceptionally if any
+     * of them could not be brought up.
+     */
+    CompletionStage<Void> start() {
+        startTime = SystemClock.elapsedRealtime();
+        if (remaining == 0)
+            completion.complete(null);
+        else
+            advance();
+        return completion;
+    }
+}
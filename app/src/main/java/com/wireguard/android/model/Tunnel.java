@@ -8,14 +8,19 @@ package com.wireguard.android.model;
 
 import android.databinding.BaseObservable;
 import android.databinding.Bindable;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.v4.util.ArrayMap;
 
 import com.wireguard.android.BR;
 import com.wireguard.android.util.ExceptionLoggers;
 import com.wireguard.android.util.Keyed;
 import com.wireguard.config.Config;
 
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 import java9.util.concurrent.CompletableFuture;
@@ -32,8 +37,14 @@ public class Tunnel extends BaseObservable implements Keyed<String> {
     private final TunnelManager manager;
     private Config config;
     private String name;
+    // The latest state requested while a change was in flight, and the callers waiting for it.
+    private State nextState;
+    private CompletableFuture<State> nextStateChange;
     private State state;
+    private CompletionStage<State> stateChange;
+    private State stateChangeTarget;
     private Statistics statistics;
+    private CompletionStage<Statistics> statisticsRefresh;
 
     Tunnel(@NonNull final TunnelManager manager, @NonNull final String name,
            @Nullable final Config config, @NonNull final State state) {
@@ -83,18 +94,20 @@ public class Tunnel extends BaseObservable implements Keyed<String> {
         return manager.getTunnelState(this);
     }
 
+    /**
+     * Get the most recently collected statistics, starting a refresh in the background if they
+     * are missing or older than {@link TunnelManager#getStatisticsMaxAge()}.
+     */
     @Bindable
     public Statistics getStatistics() {
-        // FIXME: Check age of statistics.
-        if (statistics == null)
-            manager.getTunnelStatistics(this).whenComplete(ExceptionLoggers.E);
+        if (statistics == null || statistics.isStale(manager.getStatisticsMaxAge()))
+            refreshStatistics().whenComplete(ExceptionLoggers.E);
         return statistics;
     }
 
     public CompletionStage<Statistics> getStatisticsAsync() {
-        // FIXME: Check age of statistics.
-        if (statistics == null)
-            return manager.getTunnelStatistics(this);
+        if (statistics == null || statistics.isStale(manager.getStatisticsMaxAge()))
+            return refreshStatistics();
         return CompletableFuture.completedFuture(statistics);
     }
 
@@ -124,6 +137,19 @@ public class Tunnel extends BaseObservable implements Keyed<String> {
         return statistics;
     }
 
+    private CompletionStage<Statistics> refreshStatistics() {
+        // Share one backend query between everyone who asks while it is in flight.
+        if (statisticsRefresh != null)
+            return statisticsRefresh;
+        final CompletionStage<Statistics> refresh = manager.getTunnelStatistics(this);
+        statisticsRefresh = refresh;
+        refresh.whenComplete((s, e) -> {
+            if (statisticsRefresh == refresh)
+                statisticsRefresh = null;
+        });
+        return refresh;
+    }
+
     public CompletionStage<Config> setConfig(@NonNull final Config config) {
         if (!config.equals(this.config))
             return manager.setTunnelConfig(this, config);
@@ -136,10 +162,56 @@ public class Tunnel extends BaseObservable implements Keyed<String> {
         return CompletableFuture.completedFuture(this.name);
     }
 
-    public CompletionStage<State> setState(@NonNull final State state) {
-        if (state != this.state)
-            return manager.setTunnelState(this, state);
-        return CompletableFuture.completedFuture(this.state);
+    /**
+     * Change the state of the tunnel. Requests made while a change is in flight are collapsed
+     * into at most one follow-up change to the most recently requested state, and callers asking
+     * for the same change share the same result, so a burst of toggles costs at most two backend
+     * transitions.
+     */
+    public CompletionStage<State> setState(@NonNull State state) {
+        if (stateChange == null) {
+            if (state == this.state)
+                return CompletableFuture.completedFuture(this.state);
+            return startStateChange(state);
+        }
+        // Toggle relative to what was last asked for, not to what is currently running.
+        if (state == State.TOGGLE) {
+            final State intended = nextState != null ? nextState : stateChangeTarget;
+            if (intended == State.TOGGLE)
+                state = this.state;
+            else
+                state = intended == State.UP ? State.DOWN : State.UP;
+        }
+        if (nextStateChange == null && state == stateChangeTarget)
+            return stateChange;
+        nextState = state;
+        if (nextStateChange == null)
+            nextStateChange = new CompletableFuture<>();
+        return nextStateChange;
+    }
+
+    private CompletionStage<State> startStateChange(final State state) {
+        final CompletionStage<State> change = manager.setTunnelState(this, state);
+        stateChange = change;
+        stateChangeTarget = state;
+        change.whenComplete((s, e) -> {
+            stateChange = null;
+            stateChangeTarget = null;
+            final CompletableFuture<State> waiting = nextStateChange;
+            if (waiting == null)
+                return;
+            final State next = nextState;
+            nextState = null;
+            nextStateChange = null;
+            // Also hands the result to anyone who asked in the meantime.
+            setState(next).whenComplete((result, error) -> {
+                if (error == null)
+                    waiting.complete(result);
+                else
+                    waiting.completeExceptionally(error);
+            });
+        });
+        return change;
     }
 
     public enum State {
@@ -152,6 +224,93 @@ public class Tunnel extends BaseObservable implements Keyed<String> {
         }
     }
 
+    /**
+     * Traffic counters and handshake information for each peer of a tunnel, as of the time they
+     * were collected.
+     */
     public static class Statistics extends BaseObservable {
+        private final long collectionTime = SystemClock.elapsedRealtime();
+        private final Map<String, PeerStatistics> peers = new ArrayMap<>();
+
+        /**
+         * Record the statistics for one peer.
+         *
+         * @param publicKey       The base64-encoded public key of the peer.
+         * @param rxBytes         The number of bytes received from the peer.
+         * @param txBytes         The number of bytes sent to the peer.
+         * @param latestHandshake The wall-clock time of the latest handshake, in milliseconds
+         *                        since the epoch, or 0 if there has been none.
+         * @param endpoint        The current endpoint of the peer, or null if it is unknown.
+         */
+        public void add(final String publicKey, final long rxBytes, final long txBytes,
+                        final long latestHandshake, @Nullable final String endpoint) {
+            peers.put(publicKey, new PeerStatistics(rxBytes, txBytes, latestHandshake, endpoint));
+        }
+
+        /**
+         * @return The time since these statistics were collected, in milliseconds.
+         */
+        public long getAge() {
+            return SystemClock.elapsedRealtime() - collectionTime;
+        }
+
+        @Nullable
+        public PeerStatistics getPeer(final String publicKey) {
+            return peers.get(publicKey);
+        }
+
+        public Set<String> getPeers() {
+            return Collections.unmodifiableSet(peers.keySet());
+        }
+
+        public long getTotalRx() {
+            long rx = 0;
+            for (final PeerStatistics peer : peers.values())
+                rx += peer.rxBytes;
+            return rx;
+        }
+
+        public long getTotalTx() {
+            long tx = 0;
+            for (final PeerStatistics peer : peers.values())
+                tx += peer.txBytes;
+            return tx;
+        }
+
+        public boolean isStale(final long maxAge) {
+            return getAge() > maxAge;
+        }
+    }
+
+    public static final class PeerStatistics {
+        private final String endpoint;
+        private final long latestHandshake;
+        private final long rxBytes;
+        private final long txBytes;
+
+        PeerStatistics(final long rxBytes, final long txBytes, final long latestHandshake,
+                       final String endpoint) {
+            this.rxBytes = rxBytes;
+            this.txBytes = txBytes;
+            this.latestHandshake = latestHandshake;
+            this.endpoint = endpoint;
+        }
+
+        @Nullable
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        public long getLatestHandshake() {
+            return latestHandshake;
+        }
+
+        public long getRxBytes() {
+            return rxBytes;
+        }
+
+        public long getTxBytes() {
+            return txBytes;
+        }
     }
 }
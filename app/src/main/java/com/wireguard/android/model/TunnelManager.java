@@ -12,21 +12,31 @@ import android.content.Intent;
 import android.databinding.BaseObservable;
 import android.databinding.Bindable;
 import android.support.annotation.NonNull;
+import android.support.v4.util.ArrayMap;
 
 import com.wireguard.android.Application;
 import com.wireguard.android.BR;
 import com.wireguard.android.configStore.ConfigStore;
 import com.wireguard.android.model.Tunnel.State;
 import com.wireguard.android.model.Tunnel.Statistics;
+import com.wireguard.android.util.AsyncWorker.Lane;
 import com.wireguard.android.util.ExceptionLoggers;
+import com.wireguard.android.util.KeyedOperationQueue;
 import com.wireguard.android.util.ObservableKeyedList;
 import com.wireguard.android.util.ObservableSortedKeyedArrayList;
 import com.wireguard.android.util.ObservableSortedKeyedList;
+import com.wireguard.android.util.StartupTrace;
+import com.wireguard.android.util.StartupTrace.Section;
+import com.wireguard.config.AllowedIPsIndex;
+import com.wireguard.config.AllowedIPsIndex.Overlap;
 import com.wireguard.config.Config;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import java9.util.Comparators;
@@ -42,16 +52,25 @@ import java9.util.stream.StreamSupport;
 public final class TunnelManager extends BaseObservable {
     private static final Comparator<String> COMPARATOR = Comparators.<String>thenComparing(
             String.CASE_INSENSITIVE_ORDER, Comparators.naturalOrder());
-    private static final String KEY_LAST_USED_TUNNEL = "last_used_tunnel";
+    private static final long DEFAULT_STATISTICS_MAX_AGE = 1000;
+    static final String KEY_LAST_USED_TUNNEL = "last_used_tunnel";
     private static final String KEY_RESTORE_ON_BOOT = "restore_on_boot";
-    private static final String KEY_RUNNING_TUNNELS = "enabled_configs";
+    static final String KEY_RUNNING_TUNNELS = "enabled_configs";
 
     private final ConfigStore configStore;
+    // Orders the operations on each tunnel, while letting different tunnels proceed in parallel.
+    private final KeyedOperationQueue operations =
+            new KeyedOperationQueue(Application.getAsyncWorker(), Lane.INTERACTIVE);
+    private final Map<String, Long> restoreLatencies = new ArrayMap<>();
     private final ObservableSortedKeyedList<String, Tunnel> tunnels =
             new ObservableSortedKeyedArrayList<>(COMPARATOR);
+    private final TunnelStateJournal stateJournal = new TunnelStateJournal(tunnels);
     private Tunnel lastUsedTunnel;
     private boolean haveLoaded;
+    private long statisticsMaxAge = DEFAULT_STATISTICS_MAX_AGE;
     private final ArrayList<CompletableFuture<Void>> delayedLoadRestoreTunnels = new ArrayList<>();
+    private final Object enumerationLock = new Object();
+    private CompletableFuture<Set<String>> pendingEnumeration;
 
     public TunnelManager(final ConfigStore configStore) {
         this.configStore = configStore;
@@ -70,7 +89,7 @@ public final class TunnelManager extends BaseObservable {
             final String message = "Tunnel " + name + " already exists";
             return CompletableFuture.failedFuture(new IllegalArgumentException(message));
         }
-        return Application.getAsyncWorker().supplyAsync(() -> configStore.create(name, config))
+        return operations.supplyAsync(() -> configStore.create(name, config), name)
                 .thenApply(savedConfig -> addToList(name, savedConfig, State.DOWN));
     }
 
@@ -81,7 +100,7 @@ public final class TunnelManager extends BaseObservable {
         if (wasLastUsed)
             setLastUsedTunnel(null);
         tunnels.remove(tunnel);
-        return Application.getAsyncWorker().runAsync(() -> {
+        return operations.runAsync(() -> {
             if (originalState == State.UP)
                 Application.getBackend().setState(tunnel, State.DOWN);
             try {
@@ -92,7 +111,7 @@ public final class TunnelManager extends BaseObservable {
                 // Re-throw the exception to fail the completion.
                 throw e;
             }
-        }).whenComplete((x, e) -> {
+        }, tunnel.getName()).whenComplete((x, e) -> {
             if (e == null)
                 return;
             // Failure, put the tunnel back.
@@ -102,23 +121,66 @@ public final class TunnelManager extends BaseObservable {
         });
     }
 
+    /**
+     * Ask the backend which tunnels are running. Queries made while one is still waiting to start
+     * share its answer, so refreshing the state of many tunnels costs a single call to the
+     * backend. Once a query has started, later ones wait for a new one, so they see any change
+     * made in the meantime.
+     */
+    private CompletionStage<Set<String>> enumerateRunning() {
+        final CompletableFuture<Set<String>> future;
+        synchronized (enumerationLock) {
+            if (pendingEnumeration != null)
+                return pendingEnumeration;
+            future = pendingEnumeration = new CompletableFuture<>();
+        }
+        Application.getAsyncWorker().supplyAsync(Lane.BACKEND_IO, () -> {
+            synchronized (enumerationLock) {
+                pendingEnumeration = null;
+            }
+            return Application.getBackend().enumerate();
+        }).whenComplete((running, e) -> {
+            if (e == null)
+                future.complete(running);
+            else
+                future.completeExceptionally(e);
+        });
+        return future;
+    }
+
     @Bindable
     public Tunnel getLastUsedTunnel() {
         return lastUsedTunnel;
     }
 
+    /**
+     * @return How long, in milliseconds from the start of the restore, each tunnel brought back
+     * up by {@link #restoreState(boolean)} took to come up.
+     */
+    public Map<String, Long> getRestoreLatencies() {
+        return Collections.unmodifiableMap(restoreLatencies);
+    }
+
+    /**
+     * @return How old, in milliseconds, a tunnel's statistics may get before reading them
+     * triggers a refresh from the backend.
+     */
+    public long getStatisticsMaxAge() {
+        return statisticsMaxAge;
+    }
+
     CompletionStage<Config> getTunnelConfig(final Tunnel tunnel) {
-        return Application.getAsyncWorker().supplyAsync(() -> configStore.load(tunnel.getName()))
+        return operations.supplyAsync(() -> configStore.load(tunnel.getName()), tunnel.getName())
                 .thenApply(tunnel::onConfigChanged);
     }
 
     CompletionStage<State> getTunnelState(final Tunnel tunnel) {
-        return Application.getAsyncWorker().supplyAsync(() -> Application.getBackend().getState(tunnel))
-                .thenApply(tunnel::onStateChanged);
+        return enumerateRunning()
+                .thenApply(running -> tunnel.onStateChanged(State.of(running.contains(tunnel.getName()))));
     }
 
     CompletionStage<Statistics> getTunnelStatistics(final Tunnel tunnel) {
-        return Application.getAsyncWorker().supplyAsync(() -> Application.getBackend().getStatistics(tunnel))
+        return Application.getAsyncWorker().supplyAsync(Lane.POLLING, () -> Application.getBackend().getStatistics(tunnel))
                 .thenApply(tunnel::onStatisticsChanged);
     }
 
@@ -127,15 +189,22 @@ public final class TunnelManager extends BaseObservable {
     }
 
     public void onCreate() {
-        Application.getAsyncWorker().supplyAsync(configStore::enumerate)
-                .thenAcceptBoth(Application.getAsyncWorker().supplyAsync(() -> Application.getBackend().enumerate()), this::onTunnelsLoaded)
+        Application.getAsyncWorker().supplyAsync(Lane.BACKEND_IO, () -> {
+            try (final Section ignored = StartupTrace.begin("Enumerate configurations")) {
+                return configStore.enumerate();
+            }
+        })
+                .thenAcceptBoth(Application.getAsyncWorker().supplyAsync(Lane.BACKEND_IO, () -> Application.getBackend().enumerate()), this::onTunnelsLoaded)
                 .whenComplete(ExceptionLoggers.E);
     }
 
     @SuppressWarnings("unchecked")
     private void onTunnelsLoaded(final Iterable<String> present, final Collection<String> running) {
-        for (final String name : present)
-            addToList(name, null, running.contains(name) ? State.UP : State.DOWN);
+        try (final Section ignored = StartupTrace.begin("Populate tunnel list")) {
+            for (final String name : present)
+                addToList(name, null, running.contains(name) ? State.UP : State.DOWN);
+        }
+        StartupTrace.markComplete("Tunnels loaded");
         final String lastUsedName = Application.getSharedPreferences().getString(KEY_LAST_USED_TUNNEL, null);
         if (lastUsedName != null)
             setLastUsedTunnel(tunnels.get(lastUsedName));
@@ -156,7 +225,7 @@ public final class TunnelManager extends BaseObservable {
     }
 
     public void refreshTunnelStates() {
-        Application.getAsyncWorker().supplyAsync(() -> Application.getBackend().enumerate())
+        enumerateRunning()
                 .thenAccept(running -> {
                     for (final Tunnel tunnel : tunnels)
                         tunnel.onStateChanged(running.contains(tunnel.getName()) ? State.UP : State.DOWN);
@@ -174,21 +243,24 @@ public final class TunnelManager extends BaseObservable {
                 return f;
             }
         }
+        // Make sure any changes not yet written are seen.
+        stateJournal.flush(false);
         final Set<String> previouslyRunning = Application.getSharedPreferences().getStringSet(KEY_RUNNING_TUNNELS, null);
         if (previouslyRunning == null)
             return CompletableFuture.completedFuture(null);
-        return CompletableFuture.allOf(StreamSupport.stream(tunnels)
+        final List<Tunnel> toRestore = StreamSupport.stream(tunnels)
                 .filter(tunnel -> previouslyRunning.contains(tunnel.getName()))
-                .map(tunnel -> setTunnelState(tunnel, State.UP))
-                .toArray(CompletableFuture[]::new));
+                .collect(Collectors.toList());
+        return new RestorePlanner(toRestore, lastUsedTunnel, restoreLatencies).start();
     }
 
+    /**
+     * Save which tunnels are running, along with any other pending state, and wait until it has
+     * been written.
+     */
     public void saveState() {
-        final Set<String> runningTunnels = StreamSupport.stream(tunnels)
-                .filter(tunnel -> tunnel.getState() == State.UP)
-                .map(Tunnel::getName)
-                .collect(Collectors.toUnmodifiableSet());
-        Application.getSharedPreferences().edit().putStringSet(KEY_RUNNING_TUNNELS, runningTunnels).apply();
+        stateJournal.onRunningTunnelsChanged();
+        stateJournal.flush(true);
     }
 
     private void setLastUsedTunnel(final Tunnel tunnel) {
@@ -196,17 +268,25 @@ public final class TunnelManager extends BaseObservable {
             return;
         lastUsedTunnel = tunnel;
         notifyPropertyChanged(BR.lastUsedTunnel);
-        if (tunnel != null)
-            Application.getSharedPreferences().edit().putString(KEY_LAST_USED_TUNNEL, tunnel.getName()).apply();
-        else
-            Application.getSharedPreferences().edit().remove(KEY_LAST_USED_TUNNEL).apply();
+        stateJournal.onLastUsedTunnelChanged(tunnel);
+    }
+
+    public void setStatisticsMaxAge(final long statisticsMaxAge) {
+        if (statisticsMaxAge < 0)
+            throw new IllegalArgumentException("Statistics age must not be negative");
+        this.statisticsMaxAge = statisticsMaxAge;
     }
 
     CompletionStage<Config> setTunnelConfig(final Tunnel tunnel, final Config config) {
-        return Application.getAsyncWorker().supplyAsync(() -> {
+        return operations.supplyAsync(() -> {
+            // WireGuard silently gives a block listed by two peers to the last one.
+            for (final Overlap overlap : new AllowedIPsIndex(config).getOverlaps()) {
+                if (overlap.isDuplicate())
+                    throw new IllegalArgumentException(overlap.toString());
+            }
             final Config appliedConfig = Application.getBackend().applyConfig(tunnel, config);
             return configStore.save(tunnel.getName(), appliedConfig);
-        }).thenApply(tunnel::onConfigChanged);
+        }, tunnel.getName()).thenApply(tunnel::onConfigChanged);
     }
 
     CompletionStage<String> setTunnelName(final Tunnel tunnel, final String name) {
@@ -222,7 +302,8 @@ public final class TunnelManager extends BaseObservable {
         if (wasLastUsed)
             setLastUsedTunnel(null);
         tunnels.remove(tunnel);
-        return Application.getAsyncWorker().supplyAsync(() -> {
+        // Hold up operations under either name until the rename is done.
+        return operations.supplyAsync(() -> {
             if (originalState == State.UP)
                 Application.getBackend().setState(tunnel, State.DOWN);
             configStore.rename(tunnel.getName(), name);
@@ -230,7 +311,7 @@ public final class TunnelManager extends BaseObservable {
             if (originalState == State.UP)
                 Application.getBackend().setState(tunnel, State.UP);
             return newName;
-        }).whenComplete((newName, e) -> {
+        }, tunnel.getName(), name).whenComplete((newName, e) -> {
             // On failure, we don't know what state the tunnel might be in. Fix that.
             if (e != null)
                 getTunnelState(tunnel);
@@ -244,13 +325,14 @@ public final class TunnelManager extends BaseObservable {
     CompletionStage<State> setTunnelState(final Tunnel tunnel, final State state) {
         // Ensure the configuration is loaded before trying to use it.
         return tunnel.getConfigAsync().thenCompose(x ->
-                Application.getAsyncWorker().supplyAsync(() -> Application.getBackend().setState(tunnel, state))
+                operations.supplyAsync(() -> Application.getBackend().setState(tunnel, state),
+                        tunnel.getName())
         ).whenComplete((newState, e) -> {
             // Ensure onStateChanged is always called (failure or not), and with the correct state.
             tunnel.onStateChanged(e == null ? newState : tunnel.getState());
             if (e == null && newState == State.UP)
                 setLastUsedTunnel(tunnel);
-            saveState();
+            stateJournal.onRunningTunnelsChanged();
         });
     }
 
@@ -289,7 +371,7 @@ public final class TunnelManager extends BaseObservable {
             final Tunnel tunnel = manager.getTunnels().get(tunnelName);
             if (tunnel == null)
                 return;
-            manager.setTunnelState(tunnel, state);
+            tunnel.setState(state);
         }
     }
 }
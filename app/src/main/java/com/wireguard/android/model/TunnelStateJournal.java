@@ -0,0 +1,99 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: GPL-2.0-or-later
+ */
+
+package com.wireguard.android.model;
+
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.wireguard.android.Application;
+import com.wireguard.android.model.Tunnel.State;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Saves which tunnels are running and which was used last, batching the changes made within a
+ * short time into a single write. During a mass restore or toggle, this turns one write of the
+ * whole set of running tunnels per tunnel into one write in total.
+ *
+ * All methods must be called from the main thread.
+ */
+
+final class TunnelStateJournal {
+    private static final long WRITE_DELAY = 500;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Iterable<Tunnel> tunnels;
+    private final Runnable writer = () -> flush(false);
+    private String lastUsedTunnel;
+    private boolean lastUsedTunnelChanged;
+    private boolean runningTunnelsChanged;
+    private boolean writeScheduled;
+
+    /**
+     * @param tunnels The tunnels whose states to save.
+     */
+    TunnelStateJournal(final Iterable<Tunnel> tunnels) {
+        this.tunnels = tunnels;
+    }
+
+    /**
+     * Write any pending changes right away.
+     *
+     * @param synchronous Whether to wait until they are on disk, such as when the device is
+     *                    shutting down. Otherwise, they are written in the background, although
+     *                    they are visible to readers of the preferences immediately.
+     */
+    void flush(final boolean synchronous) {
+        if (writeScheduled) {
+            handler.removeCallbacks(writer);
+            writeScheduled = false;
+        }
+        if (!lastUsedTunnelChanged && !runningTunnelsChanged)
+            return;
+        final SharedPreferences.Editor editor = Application.getSharedPreferences().edit();
+        if (lastUsedTunnelChanged) {
+            if (lastUsedTunnel != null)
+                editor.putString(TunnelManager.KEY_LAST_USED_TUNNEL, lastUsedTunnel);
+            else
+                editor.remove(TunnelManager.KEY_LAST_USED_TUNNEL);
+        }
+        if (runningTunnelsChanged) {
+            // Only look at the tunnels now, however many changes there were.
+            final Set<String> runningTunnels = new HashSet<>();
+            for (final Tunnel tunnel : tunnels) {
+                if (tunnel.getState() == State.UP)
+                    runningTunnels.add(tunnel.getName());
+            }
+            editor.putStringSet(TunnelManager.KEY_RUNNING_TUNNELS, runningTunnels);
+        }
+        lastUsedTunnelChanged = false;
+        runningTunnelsChanged = false;
+        if (synchronous)
+            editor.commit();
+        else
+            editor.apply();
+    }
+
+    void onLastUsedTunnelChanged(final Tunnel tunnel) {
+        lastUsedTunnel = tunnel != null ? tunnel.getName() : null;
+        lastUsedTunnelChanged = true;
+        scheduleWrite();
+    }
+
+    void onRunningTunnelsChanged() {
+        runningTunnelsChanged = true;
+        scheduleWrite();
+    }
+
+    private void scheduleWrite() {
+        if (writeScheduled)
+            return;
+        writeScheduled = true;
+        handler.postDelayed(writer, WRITE_DELAY);
+    }
+}
@@ -19,6 +19,7 @@ import android.view.ContextThemeWrapper;
 import com.wireguard.android.Application;
 import com.wireguard.android.R;
 import com.wireguard.android.activity.SettingsActivity;
+import com.wireguard.android.util.AsyncWorker.Lane;
 import com.wireguard.android.util.ExceptionLoggers;
 
 import java.io.BufferedReader;
@@ -51,7 +52,7 @@ public class LogExporterPreference extends Preference {
     }
 
     private void exportLog() {
-        Application.getAsyncWorker().supplyAsync(() -> {
+        Application.getAsyncWorker().supplyAsync(Lane.BULK, () -> {
             final File path = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
             final File file = new File(path, "wireguard-log.txt");
             if (!path.isDirectory() && !path.mkdirs())
@@ -0,0 +1,44 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: GPL-2.0-or-later
+ */
+
+package com.wireguard.android.preference;
+
+import android.content.Context;
+import android.support.v7.app.AlertDialog;
+import android.support.v7.preference.Preference;
+import android.util.AttributeSet;
+
+import com.wireguard.android.R;
+import com.wireguard.android.util.StartupTrace;
+
+/**
+ * Preference showing how long the app took to start, with the time taken by each phase.
+ */
+
+public class StartupReportPreference extends Preference {
+    public StartupReportPreference(final Context context, final AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    @Override
+    public CharSequence getSummary() {
+        return getContext().getString(R.string.startup_report_summary,
+                StartupTrace.getElapsedMillis());
+    }
+
+    @Override
+    public CharSequence getTitle() {
+        return getContext().getString(R.string.startup_report_title);
+    }
+
+    @Override
+    protected void onClick() {
+        new AlertDialog.Builder(getContext())
+                .setTitle(R.string.startup_report_title)
+                .setMessage(StartupTrace.getReport())
+                .setPositiveButton(android.R.string.ok, null)
+                .show();
+    }
+}
@@ -15,6 +15,7 @@ import android.util.Log;
 
 import com.wireguard.android.Application;
 import com.wireguard.android.R;
+import com.wireguard.android.util.AsyncWorker.Lane;
 import com.wireguard.android.util.ToolsInstaller;
 
 /**
@@ -42,7 +43,7 @@ public class ToolsInstallerPreference extends Preference {
     @Override
     public void onAttached() {
         super.onAttached();
-        Application.getAsyncWorker().supplyAsync(Application.getToolsInstaller()::areInstalled).whenComplete(this::onCheckResult);
+        Application.getAsyncWorker().supplyAsync(Lane.BACKEND_IO, Application.getToolsInstaller()::areInstalled).whenComplete(this::onCheckResult);
     }
 
     private void onCheckResult(final int state, final Throwable throwable) {
@@ -61,7 +62,7 @@ public class ToolsInstallerPreference extends Preference {
     @Override
     protected void onClick() {
         setState(State.WORKING);
-        Application.getAsyncWorker().supplyAsync(Application.getToolsInstaller()::install).whenComplete(this::onInstallResult);
+        Application.getAsyncWorker().supplyAsync(Lane.BACKEND_IO, Application.getToolsInstaller()::install).whenComplete(this::onInstallResult);
     }
 
     private void onInstallResult(final Integer result, final Throwable throwable) {
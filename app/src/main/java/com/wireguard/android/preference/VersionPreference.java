@@ -17,6 +17,7 @@ import com.wireguard.android.R;
 import com.wireguard.android.backend.Backend;
 import com.wireguard.android.backend.GoBackend;
 import com.wireguard.android.backend.WgQuickBackend;
+import com.wireguard.android.util.AsyncWorker.Lane;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -29,7 +30,7 @@ public class VersionPreference extends Preference {
 
         Application.onHaveBackend(backend -> {
             versionSummary = getContext().getString(R.string.version_summary_checking, backend.getTypeName().toLowerCase());
-            Application.getAsyncWorker().supplyAsync(backend::getVersion).whenComplete((version, exception) -> {
+            Application.getAsyncWorker().supplyAsync(Lane.BACKEND_IO, backend::getVersion).whenComplete((version, exception) -> {
                 versionSummary = exception == null
                         ? getContext().getString(R.string.version_summary, backend.getTypeName(), version)
                         : getContext().getString(R.string.version_summary_unknown, backend.getTypeName().toLowerCase());
@@ -20,13 +20,13 @@ import com.wireguard.android.Application;
 import com.wireguard.android.R;
 import com.wireguard.android.activity.SettingsActivity;
 import com.wireguard.android.model.Tunnel;
+import com.wireguard.android.util.AsyncWorker.Lane;
 import com.wireguard.android.util.ExceptionLoggers;
 import com.wireguard.config.Config;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.zip.ZipEntry;
@@ -67,7 +67,7 @@ public class ZipExporterPreference extends Preference {
             return;
         }
         CompletableFuture.allOf(futureConfigs.toArray(new CompletableFuture[futureConfigs.size()]))
-                .whenComplete((ignored1, exception) -> Application.getAsyncWorker().supplyAsync(() -> {
+                .whenComplete((ignored1, exception) -> Application.getAsyncWorker().supplyAsync(Lane.BULK, () -> {
                     if (exception != null)
                         throw exception;
                     final File path = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
@@ -77,8 +77,7 @@ public class ZipExporterPreference extends Preference {
                     try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file))) {
                         for (int i = 0; i < futureConfigs.size(); ++i) {
                             zip.putNextEntry(new ZipEntry(tunnels.get(i).getName() + ".conf"));
-                            zip.write(futureConfigs.get(i).getNow(null).
-                                    toString().getBytes(StandardCharsets.UTF_8));
+                            futureConfigs.get(i).getNow(null).writeTo(zip);
                         }
                         zip.closeEntry();
                     } catch (final Exception e) {
@@ -7,28 +7,88 @@
 package com.wireguard.android.util;
 
 import android.os.Handler;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
 
-import java.util.concurrent.Executor;
+import java.util.ArrayDeque;
+import java.util.Queue;
 
 import java9.util.concurrent.CompletableFuture;
 import java9.util.concurrent.CompletionStage;
 
 /**
  * Helper class for running asynchronous tasks and ensuring they are completed on the main thread.
+ *
+ * Tasks are submitted to one of several {@link Lane}s, which share a small pool of threads.
+ * Interactive tasks may use every thread, so callers order them where needed (see
+ * {@link KeyedOperationQueue}); tasks in any other lane run one at a time, in order. Whenever a
+ * thread is free, it takes the next task from the highest-priority lane that may start one, and
+ * one thread is always kept for {@link Lane#INTERACTIVE} work, so a tap on a tunnel never waits
+ * behind queued bulk work.
  */
 
 public class AsyncWorker {
-    private final Executor executor;
+    private static final String TAG = "WireGuard/" + AsyncWorker.class.getSimpleName();
+    private static final int THREADS = 4;
+
     private final Handler handler;
+    private final LaneState[] lanes = new LaneState[Lane.values().length];
+    private int runningBackground;
 
-    public AsyncWorker(final Executor executor, final Handler handler) {
-        this.executor = executor;
+    public AsyncWorker(final Handler handler) {
         this.handler = handler;
+        for (final Lane lane : Lane.values())
+            lanes[lane.ordinal()] = new LaneState();
+        for (int i = 0; i < THREADS; ++i) {
+            final Thread thread = new Thread(this::work, "AsyncWorker-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private synchronized void enqueue(final Lane lane, final Runnable runnable) {
+        lanes[lane.ordinal()].queue.add(new Task(lane, runnable, SystemClock.elapsedRealtime()));
+        notifyAll();
+    }
+
+    /**
+     * @return A snapshot of the queue depth and waiting times of a lane.
+     */
+    public synchronized LaneStatistics getStatistics(final Lane lane) {
+        final LaneState state = lanes[lane.ordinal()];
+        return new LaneStatistics(state.queue.size(), state.started, state.totalWait,
+                state.maxWait);
+    }
+
+    /**
+     * Take the next task that may run now, and mark its lane as busy.
+     *
+     * @return The task, or null if every lane is empty, busy, or limited.
+     */
+    private Task next() {
+        for (final Lane lane : Lane.values()) {
+            final LaneState state = lanes[lane.ordinal()];
+            if (state.running == lane.maxRunning || state.queue.isEmpty())
+                continue;
+            if (lane != Lane.INTERACTIVE && runningBackground == THREADS - 1)
+                return null;
+            final Task task = state.queue.remove();
+            final long wait = SystemClock.elapsedRealtime() - task.enqueued;
+            ++state.running;
+            ++state.started;
+            state.totalWait += wait;
+            state.maxWait = Math.max(state.maxWait, wait);
+            if (lane != Lane.INTERACTIVE)
+                ++runningBackground;
+            return task;
+        }
+        return null;
     }
 
-    public CompletionStage<Void> runAsync(final AsyncRunnable<?> runnable) {
+    public CompletionStage<Void> runAsync(final Lane lane, final AsyncRunnable<?> runnable) {
         final CompletableFuture<Void> future = new CompletableFuture<>();
-        executor.execute(() -> {
+        enqueue(lane, () -> {
             try {
                 runnable.run();
                 handler.post(() -> future.complete(null));
@@ -39,9 +99,10 @@ public class AsyncWorker {
         return future;
     }
 
-    public <T> CompletionStage<T> supplyAsync(final AsyncSupplier<T, ?> supplier) {
+    public <T> CompletionStage<T> supplyAsync(final Lane lane,
+                                              final AsyncSupplier<T, ?> supplier) {
         final CompletableFuture<T> future = new CompletableFuture<>();
-        executor.execute(() -> {
+        enqueue(lane, () -> {
             try {
                 final T result = supplier.get();
                 handler.post(() -> future.complete(result));
@@ -52,6 +113,67 @@ public class AsyncWorker {
         return future;
     }
 
+    private void work() {
+        while (true) {
+            Task task;
+            synchronized (this) {
+                while ((task = next()) == null) {
+                    try {
+                        wait();
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            Process.setThreadPriority(task.lane.threadPriority);
+            try {
+                task.runnable.run();
+            } catch (final RuntimeException e) {
+                // Tasks report their own failures; this only guards the worker thread.
+                Log.e(TAG, "Uncaught exception in " + task.lane + " task", e);
+            } finally {
+                synchronized (this) {
+                    --lanes[task.lane.ordinal()].running;
+                    if (task.lane != Lane.INTERACTIVE)
+                        --runningBackground;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Kinds of work, in order of decreasing priority.
+     */
+    public enum Lane {
+        /**
+         * Changes the user is waiting for: creating, renaming, deleting, and configuring tunnels,
+         * and turning them on and off. These may run in parallel.
+         */
+        INTERACTIVE(Process.THREAD_PRIORITY_DEFAULT, THREADS),
+        /**
+         * Other requests to the backend or the configuration store, such as reading the state
+         * of a tunnel.
+         */
+        BACKEND_IO(Process.THREAD_PRIORITY_DEFAULT, 1),
+        /**
+         * Importing and exporting many tunnels or logs at once.
+         */
+        BULK(Process.THREAD_PRIORITY_BACKGROUND, 1),
+        /**
+         * Periodic refreshes of tunnel states and statistics.
+         */
+        POLLING(Process.THREAD_PRIORITY_BACKGROUND, 1);
+
+        private final int maxRunning;
+        private final int threadPriority;
+
+        Lane(final int threadPriority, final int maxRunning) {
+            this.threadPriority = threadPriority;
+            this.maxRunning = maxRunning;
+        }
+    }
+
     @FunctionalInterface
     public interface AsyncRunnable<E extends Throwable> {
         void run() throws E;
@@ -61,4 +183,76 @@ public class AsyncWorker {
     public interface AsyncSupplier<T, E extends Throwable> {
         T get() throws E;
     }
+
+    /**
+     * How busy a lane is and has been, as seen at the time of the snapshot.
+     */
+    public static final class LaneStatistics {
+        private final long maxWait;
+        private final int queueDepth;
+        private final long started;
+        private final long totalWait;
+
+        private LaneStatistics(final int queueDepth, final long started, final long totalWait,
+                               final long maxWait) {
+            this.queueDepth = queueDepth;
+            this.started = started;
+            this.totalWait = totalWait;
+            this.maxWait = maxWait;
+        }
+
+        /**
+         * @return The longest time, in milliseconds, any task has waited to start.
+         */
+        public long getMaxWaitMillis() {
+            return maxWait;
+        }
+
+        /**
+         * @return The average time, in milliseconds, tasks have waited to start.
+         */
+        public long getMeanWaitMillis() {
+            return started == 0 ? 0 : totalWait / started;
+        }
+
+        /**
+         * @return The number of tasks waiting to start.
+         */
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        /**
+         * @return The number of tasks that have started.
+         */
+        public long getStartedCount() {
+            return started;
+        }
+
+        @Override
+        public String toString() {
+            return "queued=" + queueDepth + " started=" + started + " meanWait=" +
+                    getMeanWaitMillis() + "ms maxWait=" + maxWait + "ms";
+        }
+    }
+
+    private static final class LaneState {
+        private final Queue<Task> queue = new ArrayDeque<>();
+        private long maxWait;
+        private int running;
+        private long started;
+        private long totalWait;
+    }
+
+    private static final class Task {
+        private final long enqueued;
+        private final Lane lane;
+        private final Runnable runnable;
+
+        private Task(final Lane lane, final Runnable runnable, final long enqueued) {
+            this.lane = lane;
+            this.runnable = runnable;
+            this.enqueued = enqueued;
+        }
+    }
 }
@@ -0,0 +1,97 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: GPL-2.0-or-later
+ */
+
+package com.wireguard.android.util;
+
+import com.wireguard.android.util.AsyncWorker.AsyncRunnable;
+import com.wireguard.android.util.AsyncWorker.AsyncSupplier;
+import com.wireguard.android.util.AsyncWorker.Lane;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import java9.util.concurrent.CompletableFuture;
+import java9.util.concurrent.CompletionStage;
+
+/**
+ * Runs asynchronous operations so that those with a key in common happen strictly one after
+ * another, in the order they were submitted, while operations with different keys run in
+ * parallel on the shared {@link AsyncWorker}. An operation with several keys, such as a rename
+ * under both the old and the new name, waits for all of them and holds up later operations on
+ * any of them.
+ *
+ * A failed operation does not stop the ones queued after it. This class must only be used from
+ * the main thread.
+ */
+
+public final class KeyedOperationQueue {
+    private final AsyncWorker asyncWorker;
+    private final Lane lane;
+    // The last operation submitted for each key, until it completes.
+    private final Map<String, Tail> tails = new HashMap<>();
+
+    public KeyedOperationQueue(final AsyncWorker asyncWorker, final Lane lane) {
+        this.asyncWorker = asyncWorker;
+        this.lane = lane;
+    }
+
+    public CompletionStage<Void> runAsync(final AsyncRunnable<?> runnable, final String... keys) {
+        return supplyAsync(() -> {
+            runnable.run();
+            return null;
+        }, keys);
+    }
+
+    public <T> CompletionStage<T> supplyAsync(final AsyncSupplier<T, ?> supplier,
+                                              final String... keys) {
+        // Inherit the keys of any pending operation this one waits for. Then, for example, an
+        // operation queued under the old name during a rename still goes before operations
+        // queued later under the new name.
+        final Set<String> allKeys = new LinkedHashSet<>();
+        for (final String key : keys) {
+            final Tail tail = tails.get(key);
+            if (tail != null)
+                Collections.addAll(allKeys, tail.keys);
+            allKeys.add(key);
+        }
+        final List<CompletableFuture<?>> previous = new ArrayList<>(allKeys.size());
+        for (final String key : allKeys) {
+            final Tail tail = tails.get(key);
+            if (tail != null)
+                previous.add(tail.future.handle((result, e) -> null).toCompletableFuture());
+        }
+        final CompletionStage<T> future;
+        if (previous.isEmpty())
+            future = asyncWorker.supplyAsync(lane, supplier);
+        else
+            future = CompletableFuture.allOf(previous.toArray(new CompletableFuture[0]))
+                    .thenCompose(x -> asyncWorker.supplyAsync(lane, supplier));
+        final Tail tail = new Tail(future, allKeys.toArray(new String[allKeys.size()]));
+        for (final String key : tail.keys)
+            tails.put(key, tail);
+        future.whenComplete((result, e) -> {
+            for (final String key : tail.keys) {
+                if (tails.get(key) == tail)
+                    tails.remove(key);
+            }
+        });
+        return future;
+    }
+
+    private static final class Tail {
+        private final CompletionStage<?> future;
+        private final String[] keys;
+
+        private Tail(final CompletionStage<?> future, final String[] keys) {
+            this.future = future;
+            this.keys = keys;
+        }
+    }
+}
@@ -18,21 +18,35 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import java9.util.concurrent.CompletableFuture;
+import java9.util.concurrent.CompletionStage;
 
 /**
  * Helper class for running commands as root.
  */
 
 public class RootShell {
+    // How long the thread sending batches stays around once there is nothing left to send.
+    private static final long BATCH_THREAD_KEEP_ALIVE = 10;
     private static final String SU = "su";
     private static final String TAG = "WireGuard/" + RootShell.class.getSimpleName();
 
     private final String deviceNotRootedMessage;
     private final File localBinaryDir;
     private final File localTemporaryDir;
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+            BATCH_THREAD_KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
     private final Object lock = new Object();
+    private final List<PendingCommand> pendingCommands = new ArrayList<>();
     private final String preamble;
     private Process process;
     private BufferedReader stderr;
@@ -46,6 +60,7 @@ public class RootShell {
         localTemporaryDir = new File(cacheDir, "tmp");
         preamble = String.format("export CALLING_PACKAGE=com.wireguard.android PATH=\"%s:$PATH\" TMPDIR='%s'; id -u\n",
                 localBinaryDir, localTemporaryDir);
+        executor.allowCoreThreadTimeOut(true);
     }
 
     private static boolean isExecutableInPath(final String name) {
@@ -82,49 +97,164 @@ public class RootShell {
      */
     public int run(final Collection<String> output, final String command)
             throws IOException, NoRootException {
+        return run(output, command, true);
+    }
+
+    /**
+     * Run a command in a root shell.
+     *
+     * @param output    Lines read from stdout are appended to this list. Pass null if the
+     *                  output from the shell is not important.
+     * @param command   Command to run as root.
+     * @param logOutput Whether to log the lines read from stdout. Pass false if they may contain
+     *                  secrets.
+     * @return The exit value of the command.
+     */
+    public int run(final Collection<String> output, final String command, final boolean logOutput)
+            throws IOException, NoRootException {
+        final LineHandler handler = output != null ? output::add : null;
+        return run(handler, command, logOutput);
+    }
+
+    /**
+     * Run a command in a root shell, handling its output one line at a time as it is read.
+     *
+     * @param handler   Called with each line read from stdout. Pass null if the output from the
+     *                  shell is not important.
+     * @param command   Command to run as root.
+     * @param logOutput Whether to log the lines read from stdout. Pass false if they may contain
+     *                  secrets.
+     * @return The exit value of the command.
+     */
+    public int run(final LineHandler handler, final String command, final boolean logOutput)
+            throws IOException, NoRootException {
         synchronized (lock) {
             /* Start inside synchronized block to prevent a concurrent call to stop(). */
             start();
             final String marker = UUID.randomUUID().toString();
-            final String script = "echo " + marker + "; echo " + marker + " >&2; (" + command +
-                    "); ret=$?; echo " + marker + " $ret; echo " + marker + " $ret >&2\n";
-            Log.v(TAG, "executing: " + command);
-            stdin.write(script);
+            final StringBuilder script = new StringBuilder();
+            appendScript(script, marker, command);
+            stdin.write(script.toString());
             stdin.flush();
-            String line;
-            int errnoStdout = Integer.MIN_VALUE;
-            int errnoStderr = Integer.MAX_VALUE;
-            int markersSeen = 0;
-            while ((line = stdout.readLine()) != null) {
-                if (line.startsWith(marker)) {
-                    ++markersSeen;
-                    if (line.length() > marker.length() + 1) {
-                        errnoStdout = Integer.valueOf(line.substring(marker.length() + 1));
-                        break;
-                    }
-                } else if (markersSeen > 0) {
-                    if (output != null)
-                        output.add(line);
-                    Log.v(TAG, "stdout: " + line);
+            return readResult(marker, handler, logOutput);
+        }
+    }
+
+    /**
+     * Run several commands in a root shell, one after another. All of the commands are sent to
+     * the shell at once, so the batch costs a single round trip, but each command still gets its
+     * own exit value and output. A failing command does not stop the ones after it.
+     *
+     * @param commands Commands to run as root.
+     * @return The result of each command, in the same order as the commands.
+     */
+    public List<Result> run(final List<String> commands) throws IOException, NoRootException {
+        synchronized (lock) {
+            /* Start inside synchronized block to prevent a concurrent call to stop(). */
+            start();
+            final String marker = UUID.randomUUID().toString();
+            final StringBuilder script = new StringBuilder();
+            for (final String command : commands)
+                appendScript(script, marker, command);
+            stdin.write(script.toString());
+            stdin.flush();
+            final List<Result> results = new ArrayList<>(commands.size());
+            for (int i = 0; i < commands.size(); ++i) {
+                final List<String> output = new ArrayList<>();
+                final int exitValue = readResult(marker, output::add, true);
+                results.add(new Result(exitValue, output));
+            }
+            return results;
+        }
+    }
+
+    /**
+     * Run a command in a root shell in the background. Commands submitted while an earlier batch
+     * is running are collected and sent to the shell together as the next batch, so callers on
+     * several threads share round trips instead of waiting for each other's.
+     *
+     * @param command Command to run as root.
+     * @return A future completed, on the thread running the batch, with the result of the
+     * command.
+     */
+    public CompletionStage<Result> runAsync(final String command) {
+        final CompletableFuture<Result> future = new CompletableFuture<>();
+        final boolean isFirst;
+        synchronized (pendingCommands) {
+            isFirst = pendingCommands.isEmpty();
+            pendingCommands.add(new PendingCommand(command, future));
+        }
+        if (isFirst)
+            executor.execute(this::runPendingCommands);
+        return future;
+    }
+
+    private void appendScript(final StringBuilder script, final String marker,
+                              final String command) {
+        Log.v(TAG, "executing: " + command);
+        script.append("echo ").append(marker).append("; echo ").append(marker).append(" >&2; (")
+                .append(command).append("); ret=$?; echo ").append(marker).append(" $ret; echo ")
+                .append(marker).append(" $ret >&2\n");
+    }
+
+    /**
+     * Read the output of the next command in the shell, up to and including its exit markers.
+     */
+    private int readResult(final String marker, final LineHandler handler,
+                           final boolean logOutput) throws IOException {
+        String line;
+        int errnoStdout = Integer.MIN_VALUE;
+        int errnoStderr = Integer.MAX_VALUE;
+        int markersSeen = 0;
+        while ((line = stdout.readLine()) != null) {
+            if (line.startsWith(marker)) {
+                ++markersSeen;
+                if (line.length() > marker.length() + 1) {
+                    errnoStdout = Integer.valueOf(line.substring(marker.length() + 1));
+                    break;
                 }
+            } else if (markersSeen > 0) {
+                if (handler != null)
+                    handler.onLine(line);
+                if (logOutput)
+                    Log.v(TAG, "stdout: " + line);
             }
-            while ((line = stderr.readLine()) != null) {
-                if (line.startsWith(marker)) {
-                    ++markersSeen;
-                    if (line.length() > marker.length() + 1) {
-                        errnoStderr = Integer.valueOf(line.substring(marker.length() + 1));
-                        break;
-                    }
-                } else if (markersSeen > 2) {
-                    Log.v(TAG, "stderr: " + line);
+        }
+        while ((line = stderr.readLine()) != null) {
+            if (line.startsWith(marker)) {
+                ++markersSeen;
+                if (line.length() > marker.length() + 1) {
+                    errnoStderr = Integer.valueOf(line.substring(marker.length() + 1));
+                    break;
                 }
+            } else if (markersSeen > 2) {
+                Log.v(TAG, "stderr: " + line);
             }
-            if (markersSeen != 4)
-                throw new IOException("Expected 4 markers, received " + markersSeen);
-            if (errnoStdout != errnoStderr)
-                throw new IOException("Unable to read exit status");
-            Log.v(TAG, "exit: " + errnoStdout);
-            return errnoStdout;
+        }
+        if (markersSeen != 4)
+            throw new IOException("Expected 4 markers, received " + markersSeen);
+        if (errnoStdout != errnoStderr)
+            throw new IOException("Unable to read exit status");
+        Log.v(TAG, "exit: " + errnoStdout);
+        return errnoStdout;
+    }
+
+    private void runPendingCommands() {
+        final List<PendingCommand> batch;
+        synchronized (pendingCommands) {
+            batch = new ArrayList<>(pendingCommands);
+            pendingCommands.clear();
+        }
+        final List<String> commands = new ArrayList<>(batch.size());
+        for (final PendingCommand pending : batch)
+            commands.add(pending.command);
+        try {
+            final List<Result> results = run(commands);
+            for (int i = 0; i < batch.size(); ++i)
+                batch.get(i).future.complete(results.get(i));
+        } catch (final Exception e) {
+            for (final PendingCommand pending : batch)
+                pending.future.completeExceptionally(e);
         }
     }
 
@@ -185,6 +315,45 @@ public class RootShell {
         }
     }
 
+    /**
+     * Receives the standard output of a command as it is read.
+     */
+    @FunctionalInterface
+    public interface LineHandler {
+        void onLine(String line);
+    }
+
+    private static final class PendingCommand {
+        private final String command;
+        private final CompletableFuture<Result> future;
+
+        private PendingCommand(final String command, final CompletableFuture<Result> future) {
+            this.command = command;
+            this.future = future;
+        }
+    }
+
+    /**
+     * The exit value and standard output of a command run as part of a batch.
+     */
+    public static final class Result {
+        private final int exitValue;
+        private final List<String> output;
+
+        private Result(final int exitValue, final List<String> output) {
+            this.exitValue = exitValue;
+            this.output = Collections.unmodifiableList(output);
+        }
+
+        public int getExitValue() {
+            return exitValue;
+        }
+
+        public List<String> getOutput() {
+            return output;
+        }
+    }
+
     public static class NoRootException extends Exception {
         public NoRootException(final String message, final Throwable cause) {
             super(message, cause);
@@ -23,6 +23,12 @@ public final class SharedLibraryLoader {
     }
 
     public static void loadSharedLibrary(final Context context, final String libName) {
+        try (final StartupTrace.Section ignored = StartupTrace.begin("Load " + libName)) {
+            load(context, libName);
+        }
+    }
+
+    private static void load(final Context context, final String libName) {
         Throwable noAbiException;
         try {
             System.loadLibrary(libName);
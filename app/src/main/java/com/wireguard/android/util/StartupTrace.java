@@ -0,0 +1,142 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: GPL-2.0-or-later
+ */
+
+package com.wireguard.android.util;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.Trace;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Records how long the phases of a cold start take. Each phase is also a section in systrace,
+ * so it lines up with the rest of the system there. The report can be viewed in the settings,
+ * and read with {@code dumpsys} through {@link com.wireguard.android.StartupTraceProvider} or the
+ * app's services.
+ */
+
+public final class StartupTrace {
+    // Only the start of the process is of interest; stop recording after this many events.
+    private static final int MAX_EVENTS = 64;
+    private static final List<Event> EVENTS = new ArrayList<>();
+    private static final long START_TIME = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N ?
+            Process.getStartElapsedRealtime() : SystemClock.elapsedRealtime();
+    private static long completeTime = -1;
+
+    private StartupTrace() {
+        // Prevent instantiation.
+    }
+
+    /**
+     * Start timing a phase. The phase ends when the returned section is closed, which must
+     * happen on the same thread.
+     */
+    public static Section begin(final String name) {
+        Trace.beginSection(name);
+        return new Section(name, SystemClock.elapsedRealtime());
+    }
+
+    public static void dump(final PrintWriter writer) {
+        final List<Event> events;
+        synchronized (EVENTS) {
+            events = new ArrayList<>(EVENTS);
+        }
+        // Sections are recorded when they end, so put them back in the order they started.
+        Collections.sort(events, (a, b) -> Long.compare(a.start, b.start));
+        writer.println("Startup phases (ms since process start, duration in ms):");
+        for (final Event event : events) {
+            writer.print("  ");
+            writer.print(event.start - START_TIME);
+            writer.print(event.duration >= 0 ? "\t+" + event.duration : "\t-");
+            writer.print('\t');
+            writer.print(event.name);
+            writer.print(" [");
+            writer.print(event.thread);
+            writer.println(']');
+        }
+    }
+
+    /**
+     * @return The time from the start of the process until the start was marked complete, in
+     * milliseconds, or 0 if that has not happened yet. Work done later, such as loading the Go
+     * backend when a tunnel is first brought up, is in the report but does not count here.
+     */
+    public static long getElapsedMillis() {
+        synchronized (EVENTS) {
+            return completeTime >= 0 ? completeTime - START_TIME : 0;
+        }
+    }
+
+    public static String getReport() {
+        final StringWriter report = new StringWriter();
+        dump(new PrintWriter(report));
+        return report.toString();
+    }
+
+    /**
+     * Record that a milestone, such as the first display of data, has been reached.
+     */
+    public static void mark(final String name) {
+        record(new Event(name, SystemClock.elapsedRealtime(), -1));
+    }
+
+    /**
+     * Record the milestone that ends the start, which {@link #getElapsedMillis()} measures to.
+     * Only the first call counts.
+     */
+    public static void markComplete(final String name) {
+        final long now = SystemClock.elapsedRealtime();
+        synchronized (EVENTS) {
+            if (completeTime < 0)
+                completeTime = now;
+        }
+        record(new Event(name, now, -1));
+    }
+
+    private static void record(final Event event) {
+        synchronized (EVENTS) {
+            if (EVENTS.size() < MAX_EVENTS)
+                EVENTS.add(event);
+        }
+    }
+
+    private static final class Event {
+        private final long duration;
+        private final String name;
+        private final long start;
+        private final String thread = Thread.currentThread().getName();
+
+        private Event(final String name, final long start, final long duration) {
+            this.name = name;
+            this.start = start;
+            this.duration = duration;
+        }
+    }
+
+    /**
+     * A phase that is being timed.
+     */
+    public static final class Section implements AutoCloseable {
+        private final String name;
+        private final long start;
+
+        private Section(final String name, final long start) {
+            this.name = name;
+            this.start = start;
+        }
+
+        @Override
+        public void close() {
+            Trace.endSection();
+            record(new Event(name, start, SystemClock.elapsedRealtime() - start));
+        }
+    }
+}
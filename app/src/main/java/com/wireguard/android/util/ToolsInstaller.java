@@ -40,6 +40,8 @@ public final class ToolsInstaller {
             new File("/system/bin"),
     };
     private static final File INSTALL_DIR = getInstallDir();
+    private static final String MAGISK_CHECK =
+            "[ -d /sbin/.core/mirror -a -d /sbin/.core/img -a ! -f /cache/.disable_magisk ]";
     private static final String TAG = "WireGuard/" + ToolsInstaller.class.getSimpleName();
 
     private final File localBinaryDir;
@@ -76,11 +78,25 @@ public final class ToolsInstaller {
         }
         script.append("exit ").append(OsConstants.EALREADY).append(';');
         try {
-            final int ret = Application.getRootShell().run(null, script.toString());
+            final int ret;
+            final boolean magisk;
+            synchronized (lock) {
+                if (installAsMagiskModule == null) {
+                    // Answer both questions with a single round trip to the root shell.
+                    final List<RootShell.Result> results = Application.getRootShell()
+                            .run(Arrays.asList(script.toString(), MAGISK_CHECK));
+                    ret = results.get(0).getExitValue();
+                    installAsMagiskModule =
+                            results.get(1).getExitValue() == OsConstants.EXIT_SUCCESS;
+                } else {
+                    ret = Application.getRootShell().run(null, script.toString());
+                }
+                magisk = installAsMagiskModule;
+            }
             if (ret == OsConstants.EALREADY)
-                return willInstallAsMagiskModule() ? YES | MAGISK : YES | SYSTEM;
+                return magisk ? YES | MAGISK : YES | SYSTEM;
             else
-                return willInstallAsMagiskModule() ? NO | MAGISK : NO | SYSTEM;
+                return magisk ? NO | MAGISK : NO | SYSTEM;
         } catch (final IOException ignored) {
             return ERROR;
         }
@@ -89,7 +105,10 @@ public final class ToolsInstaller {
     public void ensureToolsAvailable() throws FileNotFoundException, NoRootException {
         synchronized (lock) {
             if (areToolsAvailable == null) {
-                final int ret = symlink();
+                final int ret;
+                try (final StartupTrace.Section ignored = StartupTrace.begin("Link tools")) {
+                    ret = symlink();
+                }
                 if (ret == OsConstants.EALREADY) {
                     Log.d(TAG, "Tools were already symlinked into our private binary dir");
                     areToolsAvailable = true;
@@ -110,7 +129,7 @@ public final class ToolsInstaller {
         synchronized (lock) {
             if (installAsMagiskModule == null) {
                 try {
-                    installAsMagiskModule = Application.getRootShell().run(null, "[ -d /sbin/.core/mirror -a -d /sbin/.core/img -a ! -f /cache/.disable_magisk ]") == OsConstants.EXIT_SUCCESS;
+                    installAsMagiskModule = Application.getRootShell().run(null, MAGISK_CHECK) == OsConstants.EXIT_SUCCESS;
                 } catch (final Exception ignored) {
                     installAsMagiskModule = false;
                 }
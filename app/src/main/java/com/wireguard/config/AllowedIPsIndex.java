@@ -0,0 +1,301 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: GPL-2.0-or-later
+ */
+
+package com.wireguard.config;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of the AllowedIPs of a set of peers, answering which peer a packet to a given address
+ * would be sent to, and which peers have AllowedIPs that overlap. It is a compressed binary trie
+ * (one for each address family), so a lookup takes time proportional to the prefix length.
+ *
+ * Like WireGuard itself, a block listed by more than one peer belongs to the peer added last,
+ * and otherwise the most specific block containing an address wins.
+ */
+
+public final class AllowedIPsIndex {
+    private final Map<Peer, IPCidr[]> peers = new IdentityHashMap<>();
+    private Node ipv4Root;
+    private Node ipv6Root;
+
+    public AllowedIPsIndex() {
+        // Start out empty.
+    }
+
+    /**
+     * Create an index of all of the peers in a configuration, in the order they appear.
+     */
+    public AllowedIPsIndex(final Config config) {
+        for (final Peer peer : config.getPeers())
+            add(peer);
+    }
+
+    private static void collectOverlaps(final Node node, final Node covering,
+                                        final List<Overlap> overlaps) {
+        if (node == null)
+            return;
+        Node nextCovering = covering;
+        if (!node.owners.isEmpty()) {
+            final Peer winner = node.getWinner();
+            for (int i = 0; i < node.owners.size() - 1; ++i) {
+                if (node.owners.get(i) != winner)
+                    overlaps.add(new Overlap(node.key, node.owners.get(i), node.key, winner));
+            }
+            if (covering != null && covering.getWinner() != winner)
+                overlaps.add(new Overlap(covering.key, covering.getWinner(), node.key, winner));
+            nextCovering = node;
+        }
+        collectOverlaps(node.children[0], nextCovering, overlaps);
+        collectOverlaps(node.children[1], nextCovering, overlaps);
+    }
+
+    private static int maxPrefix(final IPCidr cidr) {
+        return cidr.isIpv6() ? 128 : 32;
+    }
+
+    /**
+     * Add the AllowedIPs (minus any DisallowedIPs) of a peer. If the peer is already in the
+     * index, it is removed first, so it picks up any changes to its AllowedIPs.
+     */
+    public void add(final Peer peer) {
+        remove(peer);
+        final IPCidr[] allowedIPs = peer.getAllowedIPs();
+        for (int i = 0; i < allowedIPs.length; ++i) {
+            allowedIPs[i] = IPCidrSet.toNetwork(allowedIPs[i]);
+            insert(allowedIPs[i], peer);
+        }
+        peers.put(peer, allowedIPs);
+    }
+
+    /**
+     * Find the blocks that more than one peer routes. This includes blocks that several peers
+     * list exactly, where only the last peer gets any traffic, and blocks of one peer that lie
+     * inside a larger block of another, which take that part of the larger block's traffic.
+     *
+     * @return The overlaps, in address order.
+     */
+    public List<Overlap> getOverlaps() {
+        final List<Overlap> overlaps = new ArrayList<>();
+        collectOverlaps(ipv4Root, null, overlaps);
+        collectOverlaps(ipv6Root, null, overlaps);
+        return overlaps;
+    }
+
+    private Node getRoot(final boolean ipv6) {
+        return ipv6 ? ipv6Root : ipv4Root;
+    }
+
+    private void insert(final IPCidr key, final Peer peer) {
+        final int length = IPCidrSet.prefix128(key);
+        Node parent = null;
+        Node node = getRoot(key.isIpv6());
+        while (node != null) {
+            final int nodeLength = IPCidrSet.prefix128(node.key);
+            final int common = IPCidrSet.commonPrefixLength(node.key, key);
+            if (common == nodeLength && common == length) {
+                node.removeOwner(peer);
+                node.owners.add(peer);
+                return;
+            }
+            if (common == nodeLength) {
+                parent = node;
+                node = node.children[IPCidrSet.testBit(key, nodeLength) ? 1 : 0];
+                continue;
+            }
+            // The new block ends or diverges partway along the edge to this node.
+            final Node inserted;
+            if (common == length) {
+                inserted = new Node(key);
+                inserted.owners.add(peer);
+            } else {
+                inserted = new Node(IPCidrSet.withPrefix(key,
+                        common - (IPCidrSet.prefix128(key) - key.getCidr())));
+                final Node leaf = new Node(key);
+                leaf.owners.add(peer);
+                inserted.children[IPCidrSet.testBit(key, common) ? 1 : 0] = leaf;
+            }
+            inserted.children[IPCidrSet.testBit(node.key, common) ? 1 : 0] = node;
+            replace(parent, node, inserted, key.isIpv6());
+            return;
+        }
+        final Node leaf = new Node(key);
+        leaf.owners.add(peer);
+        if (parent == null) {
+            setRoot(key.isIpv6(), leaf);
+            return;
+        }
+        parent.children[IPCidrSet.testBit(key, IPCidrSet.prefix128(parent.key)) ? 1 : 0] = leaf;
+    }
+
+    /**
+     * Find the peer that a packet would be sent to.
+     *
+     * @param address The destination address. Any prefix length is ignored.
+     * @return The peer, or null if no peer's AllowedIPs contain the address.
+     */
+    public Peer lookup(final IPCidr address) {
+        final IPCidr host = new IPCidr(address.isIpv6(), address.getHighBits(),
+                address.getLowBits(), maxPrefix(address));
+        Peer best = null;
+        Node node = getRoot(host.isIpv6());
+        while (node != null && IPCidrSet.contains(node.key, host)) {
+            if (!node.owners.isEmpty())
+                best = node.getWinner();
+            final int length = IPCidrSet.prefix128(node.key);
+            if (length == 128)
+                break;
+            node = node.children[IPCidrSet.testBit(host, length) ? 1 : 0];
+        }
+        return best;
+    }
+
+    /**
+     * Find the peer that a packet would be sent to.
+     *
+     * @param address The numeric destination address.
+     * @return The peer, or null if no peer's AllowedIPs contain the address.
+     */
+    public Peer lookup(final String address) {
+        return lookup(new IPCidr(address));
+    }
+
+    /**
+     * Remove a peer and all of its AllowedIPs. Blocks it shared with other peers go back to the
+     * most recently added of them.
+     */
+    public void remove(final Peer peer) {
+        final IPCidr[] allowedIPs = peers.remove(peer);
+        if (allowedIPs == null)
+            return;
+        for (final IPCidr key : allowedIPs)
+            removeKey(key, peer);
+    }
+
+    private void removeKey(final IPCidr key, final Peer peer) {
+        final int length = IPCidrSet.prefix128(key);
+        Node grandparent = null;
+        Node parent = null;
+        Node node = getRoot(key.isIpv6());
+        while (node != null && IPCidrSet.prefix128(node.key) < length) {
+            if (!IPCidrSet.contains(node.key, key))
+                return;
+            grandparent = parent;
+            parent = node;
+            node = node.children[IPCidrSet.testBit(key, IPCidrSet.prefix128(node.key)) ? 1 : 0];
+        }
+        if (node == null || !node.key.equals(key) || !node.removeOwner(peer) ||
+                !node.owners.isEmpty())
+            return;
+        // Drop nodes that no longer hold a block or join two branches.
+        if (node.children[0] != null && node.children[1] != null)
+            return;
+        final Node child = node.children[0] != null ? node.children[0] : node.children[1];
+        replace(parent, node, child, key.isIpv6());
+        if (child == null && parent != null && parent.owners.isEmpty()) {
+            final Node sibling = parent.children[0] != null ? parent.children[0] :
+                    parent.children[1];
+            replace(grandparent, parent, sibling, key.isIpv6());
+        }
+    }
+
+    private void replace(final Node parent, final Node node, final Node replacement,
+                         final boolean ipv6) {
+        if (parent == null)
+            setRoot(ipv6, replacement);
+        else
+            parent.children[parent.children[0] == node ? 0 : 1] = replacement;
+    }
+
+    private void setRoot(final boolean ipv6, final Node root) {
+        if (ipv6)
+            ipv6Root = root;
+        else
+            ipv4Root = root;
+    }
+
+    private static final class Node {
+        private final Node[] children = new Node[2];
+        private final IPCidr key;
+        // Every peer that lists this block, in the order they were added.
+        private final List<Peer> owners = new ArrayList<>(1);
+
+        private Node(final IPCidr key) {
+            this.key = key;
+        }
+
+        private Peer getWinner() {
+            return owners.get(owners.size() - 1);
+        }
+
+        /**
+         * Remove a peer by identity, since distinct peers may be equal.
+         */
+        private boolean removeOwner(final Peer peer) {
+            for (int i = 0; i < owners.size(); ++i) {
+                if (owners.get(i) == peer) {
+                    owners.remove(i);
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A block of one peer that takes traffic away from a block of another peer.
+     */
+    public static final class Overlap {
+        private final IPCidr shadowedCidr;
+        private final Peer shadowedPeer;
+        private final IPCidr winningCidr;
+        private final Peer winningPeer;
+
+        private Overlap(final IPCidr shadowedCidr, final Peer shadowedPeer,
+                        final IPCidr winningCidr, final Peer winningPeer) {
+            this.shadowedCidr = shadowedCidr;
+            this.shadowedPeer = shadowedPeer;
+            this.winningCidr = winningCidr;
+            this.winningPeer = winningPeer;
+        }
+
+        public IPCidr getShadowedCidr() {
+            return shadowedCidr;
+        }
+
+        public Peer getShadowedPeer() {
+            return shadowedPeer;
+        }
+
+        public IPCidr getWinningCidr() {
+            return winningCidr;
+        }
+
+        public Peer getWinningPeer() {
+            return winningPeer;
+        }
+
+        /**
+         * @return Whether both peers list exactly the same block, so the shadowed peer gets
+         * none of its traffic.
+         */
+        public boolean isDuplicate() {
+            return shadowedCidr.equals(winningCidr);
+        }
+
+        @Override
+        public String toString() {
+            if (isDuplicate())
+                return "AllowedIPs " + shadowedCidr + " of peer " + shadowedPeer.getPublicKey() +
+                        " are taken over by peer " + winningPeer.getPublicKey();
+            return "AllowedIPs " + winningCidr + " of peer " + winningPeer.getPublicKey() +
+                    " take traffic from " + shadowedCidr + " of peer " +
+                    shadowedPeer.getPublicKey();
+        }
+    }
+}
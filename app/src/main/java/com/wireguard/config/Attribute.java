@@ -6,13 +6,9 @@
 
 package com.wireguard.config;
 
-import android.text.TextUtils;
-
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.util.HashMap;
-import java.util.Locale;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -22,21 +18,21 @@ import java.util.regex.Pattern;
  */
 
 enum Attribute {
-    ADDRESS("Address"),
-    ALLOWED_IPS("AllowedIPs"),
-    DNS("DNS"),
-    ENDPOINT("Endpoint"),
-    LISTEN_PORT("ListenPort"),
-    MTU("MTU"),
-    PERSISTENT_KEEPALIVE("PersistentKeepalive"),
-    PRESHARED_KEY("PresharedKey"),
-    PRIVATE_KEY("PrivateKey"),
-    PUBLIC_KEY("PublicKey");
+    ADDRESS("Address", true),
+    ALLOWED_IPS("AllowedIPs", true),
+    DISALLOWED_IPS("DisallowedIPs", true),
+    DNS("DNS", true),
+    ENDPOINT("Endpoint", false),
+    LISTEN_PORT("ListenPort", false),
+    MTU("MTU", false),
+    PERSISTENT_KEEPALIVE("PersistentKeepalive", false),
+    PRESHARED_KEY("PresharedKey", false),
+    PRIVATE_KEY("PrivateKey", false),
+    PUBLIC_KEY("PublicKey", false);
 
     private static final String[] EMPTY_LIST = new String[0];
     private static final Map<String, Attribute> KEY_MAP;
     private static final Pattern LIST_SEPARATOR_PATTERN = Pattern.compile("\\s*,\\s*");
-    private static final Method NUMERIC_ADDRESS_PARSER;
     private static final Pattern SEPARATOR_PATTERN = Pattern.compile("\\s|=");
 
     static {
@@ -46,43 +42,53 @@ enum Attribute {
         }
     }
 
-    static {
-        try {
-            NUMERIC_ADDRESS_PARSER = InetAddress.class.getMethod("parseNumericAddress", String.class);
-        } catch (final Exception e) {
-            throw new RuntimeException(e);
-        }
-    }
-
+    private final boolean isList;
     private final Pattern pattern;
     private final String token;
 
-    Attribute(final String token) {
+    Attribute(final String token, final boolean isList) {
         pattern = Pattern.compile(token + "\\s*=\\s*(\\S.*)");
         this.token = token;
+        this.isList = isList;
     }
 
     public static <T> String iterableToString(final Iterable<T> iterable) {
-        return TextUtils.join(", ", iterable);
+        final StringBuilder sb = new StringBuilder();
+        boolean first = true;
+        for (final T item : iterable) {
+            if (!first)
+                sb.append(", ");
+            sb.append(item);
+            first = false;
+        }
+        return sb.toString();
     }
 
     public static Attribute match(final CharSequence line) {
         return KEY_MAP.get(SEPARATOR_PATTERN.split(line)[0].toLowerCase());
     }
 
-    public static InetAddress parseIPString(final String address) {
-        if (address == null || address.isEmpty())
-            throw new IllegalArgumentException("Empty address");
-        try {
-            return (InetAddress) NUMERIC_ADDRESS_PARSER.invoke(null, address);
-        } catch (final IllegalAccessException e) {
-            throw new RuntimeException(e);
-        } catch (final InvocationTargetException e) {
-            if (e.getCause() instanceof IllegalArgumentException)
-                throw (IllegalArgumentException) e.getCause();
-            else
-                throw new IllegalArgumentException(e.getCause());
+    /**
+     * Find the attribute whose name matches (case-insensitively) a region of a character buffer.
+     *
+     * @return The matching attribute, or null if there is none.
+     */
+    public static Attribute match(final char[] buffer, final int offset, final int length) {
+        for (final Attribute key : Attribute.values()) {
+            if (key.token.length() != length)
+                continue;
+            int i = 0;
+            while (i < length && Character.toLowerCase(buffer[offset + i]) ==
+                    Character.toLowerCase(key.token.charAt(i)))
+                ++i;
+            if (i == length)
+                return key;
         }
+        return null;
+    }
+
+    public static InetAddress parseIPString(final String address) {
+        return IPCidr.parseAddress(address);
     }
 
     public static String[] stringToList(final String string) {
@@ -91,16 +97,15 @@ enum Attribute {
         return LIST_SEPARATOR_PATTERN.split(string.trim());
     }
 
-    public String composeWith(final Object value) {
-        return String.format("%s = %s%n", token, value);
+    public String getToken() {
+        return token;
     }
 
-    public String composeWith(final int value) {
-        return String.format(Locale.getDefault(), "%s = %d%n", token, value);
-    }
-
-    public <T> String composeWith(final Iterable<T> value) {
-        return String.format("%s = %s%n", token, iterableToString(value));
+    /**
+     * @return Whether this attribute takes a comma-separated list of values.
+     */
+    public boolean isList() {
+        return isList;
     }
 
     public String parse(final CharSequence line) {
@@ -112,4 +117,49 @@ enum Attribute {
         final Matcher matcher = pattern.matcher(line);
         return matcher.matches() ? stringToList(matcher.group(1)) : null;
     }
+
+    /**
+     * Write a line setting this attribute to a value.
+     */
+    public void write(final Appendable out, final CharSequence value) throws IOException {
+        out.append(token).append(" = ").append(value).append('\n');
+    }
+
+    public void write(final Appendable out, final int value) throws IOException {
+        write(out, Integer.toString(value));
+    }
+
+    /**
+     * Write a line setting this attribute to a list of addresses.
+     */
+    public void writeAddresses(final Appendable out, final Iterable<InetAddress> addresses)
+            throws IOException {
+        out.append(token).append(" = ");
+        boolean first = true;
+        for (final InetAddress address : addresses) {
+            if (!first)
+                out.append(", ");
+            out.append(address.getHostAddress());
+            first = false;
+        }
+        out.append('\n');
+    }
+
+    /**
+     * Write a line setting this attribute to a list of addresses in CIDR notation. Each one is
+     * formatted into the same small buffer, however long the list is.
+     */
+    public void writeCidrs(final Appendable out, final Iterable<IPCidr> cidrs) throws IOException {
+        out.append(token).append(" = ");
+        final StringBuilder scratch = new StringBuilder(43);
+        boolean first = true;
+        for (final IPCidr cidr : cidrs) {
+            if (!first)
+                out.append(", ");
+            scratch.setLength(0);
+            out.append(cidr.appendTo(scratch));
+            first = false;
+        }
+        out.append('\n');
+    }
 }
@@ -15,11 +15,18 @@ import android.os.Parcelable;
 
 import com.android.databinding.library.baseAdapters.BR;
 
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -32,40 +39,59 @@ public class Config {
     private List<Peer> peers = new ArrayList<>();
 
     public static Config from(final InputStream stream) throws IOException {
-        return from(new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8)));
+        return ConfigParser.parse(new InputStreamReader(stream, StandardCharsets.UTF_8));
     }
 
-    public static Config from(final BufferedReader reader) throws IOException {
-        final Config config = new Config();
-        Peer currentPeer = null;
-        String line;
-        boolean inInterfaceSection = false;
-        while ((line = reader.readLine()) != null) {
-            final int commentIndex = line.indexOf('#');
-            if (commentIndex != -1)
-                line = line.substring(0, commentIndex);
-            line = line.trim();
-            if (line.isEmpty())
-                continue;
-            if ("[Interface]".toLowerCase().equals(line.toLowerCase())) {
-                currentPeer = null;
-                inInterfaceSection = true;
-            } else if ("[Peer]".toLowerCase().equals(line.toLowerCase())) {
-                currentPeer = new Peer();
-                config.peers.add(currentPeer);
-                inInterfaceSection = false;
-            } else if (inInterfaceSection) {
-                config.interfaceSection.parse(line);
-            } else if (currentPeer != null) {
-                currentPeer.parse(line);
-            } else {
-                throw new IllegalArgumentException("Invalid configuration line: " + line);
-            }
+    public static Config from(final Reader reader) throws IOException {
+        return ConfigParser.parse(reader);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (obj == this)
+            return true;
+        if (obj == null || obj.getClass() != getClass())
+            return false;
+        final Config other = (Config) obj;
+        return interfaceSection.equals(other.interfaceSection) && peers.equals(other.peers);
+    }
+
+    /**
+     * Compute a digest of the configuration, which is the same for any two configurations that
+     * are equal, and can be used to identify it in caches. It is the SHA-256 hash of the file
+     * that {@link #writeTo(OutputStream)} writes, which lists every attribute in a fixed order.
+     *
+     * @return The digest, in hex.
+     */
+    public String getDigest() {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
         }
-        if (!inInterfaceSection && currentPeer == null) {
-            throw new IllegalArgumentException("Could not find any config information");
+        try (final OutputStream stream = new DigestOutputStream(new OutputStream() {
+            @Override
+            public void write(final int b) {
+                // Only the digest is needed.
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) {
+                // Only the digest is needed.
+            }
+        }, digest)) {
+            writeTo(stream);
+        } catch (final IOException e) {
+            throw new IllegalStateException(e);
         }
-        return config;
+        final byte[] hash = digest.digest();
+        final StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (final byte b : hash)
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16))
+                    .append(Character.forDigit(b & 0xF, 16));
+        return sb.toString();
     }
 
     public Interface getInterface() {
@@ -76,14 +102,63 @@ public class Config {
         return peers;
     }
 
+    @Override
+    public int hashCode() {
+        return 31 * interfaceSection.hashCode() + peers.hashCode();
+    }
+
     @Override
     public String toString() {
-        final StringBuilder sb = new StringBuilder().append(interfaceSection);
-        for (final Peer peer : peers)
-            sb.append('\n').append(peer);
+        final StringBuilder sb = new StringBuilder();
+        try {
+            writeTo(sb, false);
+        } catch (final IOException e) {
+            // StringBuilder never throws.
+            throw new IllegalStateException(e);
+        }
         return sb.toString();
     }
 
+    /**
+     * Write the configuration file, one line at a time, without building it in memory first.
+     */
+    public void writeTo(final Appendable out) throws IOException {
+        writeTo(out, false);
+    }
+
+    /**
+     * Write the configuration file as UTF-8. The stream is flushed, but not closed.
+     */
+    public void writeTo(final OutputStream stream) throws IOException {
+        writeTo(stream, false);
+    }
+
+    private void writeTo(final Appendable out, final boolean resolveDisallowedIPs)
+            throws IOException {
+        interfaceSection.writeTo(out);
+        for (final Peer peer : peers) {
+            out.append('\n');
+            peer.writeTo(out, resolveDisallowedIPs);
+        }
+    }
+
+    private void writeTo(final OutputStream stream, final boolean resolveDisallowedIPs)
+            throws IOException {
+        final Writer writer =
+                new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+        writeTo(writer, resolveDisallowedIPs);
+        writer.flush();
+    }
+
+    /**
+     * Write the configuration file in the form understood by {@code wg-quick}, which has no
+     * DisallowedIPs, so they are subtracted from AllowedIPs instead. The stream is flushed, but
+     * not closed.
+     */
+    public void writeWgQuickTo(final OutputStream stream) throws IOException {
+        writeTo(stream, true);
+    }
+
     public static class Observable extends BaseObservable implements Parcelable {
         public static final Creator<Observable> CREATOR = new Creator<Observable>() {
             @Override
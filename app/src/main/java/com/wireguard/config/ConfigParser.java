@@ -0,0 +1,187 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: GPL-2.0-or-later
+ */
+
+package com.wireguard.config;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Single-pass parser for wg-quick configuration files. Each line is tokenized in place inside a
+ * reusable character buffer, so the only objects allocated while parsing are the values handed to
+ * {@link Interface} and {@link Peer}.
+ */
+
+final class ConfigParser {
+    private static final char[] INTERFACE_SECTION = "[Interface]".toCharArray();
+    private static final char[] PEER_SECTION = "[Peer]".toCharArray();
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final char[] readBuffer = new char[READ_BUFFER_SIZE];
+    private final Reader reader;
+    private char[] line = new char[256];
+    private int lineLength;
+    private int lineNumber;
+    private int readLength;
+    private int readPosition;
+    private boolean skipLineFeed;
+
+    private ConfigParser(final Reader reader) {
+        this.reader = reader;
+    }
+
+    static Config parse(final Reader reader) throws IOException {
+        return new ConfigParser(reader).parse();
+    }
+
+    private static boolean isWhitespace(final char c) {
+        return c <= ' ';
+    }
+
+    private static void setValue(final Interface iface, final Peer peer, final Attribute key,
+                                 final String value) {
+        if (peer != null)
+            peer.parse(key, value);
+        else
+            iface.parse(key, value);
+    }
+
+    private IllegalArgumentException error(final String message, final Throwable cause) {
+        return new IllegalArgumentException("Line " + lineNumber + ": " + message, cause);
+    }
+
+    private Config parse() throws IOException {
+        final Config config = new Config();
+        Peer currentPeer = null;
+        boolean inInterfaceSection = false;
+        while (readLine()) {
+            int start = 0;
+            int end = lineLength;
+            for (int i = start; i < end; ++i) {
+                if (line[i] == '#') {
+                    end = i;
+                    break;
+                }
+            }
+            while (start < end && isWhitespace(line[start]))
+                ++start;
+            while (end > start && isWhitespace(line[end - 1]))
+                --end;
+            if (start == end)
+                continue;
+            if (line[start] == '[') {
+                if (regionEquals(start, end, INTERFACE_SECTION)) {
+                    currentPeer = null;
+                    inInterfaceSection = true;
+                } else if (regionEquals(start, end, PEER_SECTION)) {
+                    currentPeer = new Peer();
+                    config.getPeers().add(currentPeer);
+                    inInterfaceSection = false;
+                } else {
+                    throw error("Unknown section " + new String(line, start, end - start), null);
+                }
+            } else if (inInterfaceSection || currentPeer != null) {
+                parseAttribute(config.getInterface(), currentPeer, start, end);
+            } else {
+                throw error("Invalid configuration line: " + new String(line, start, end - start), null);
+            }
+        }
+        if (!inInterfaceSection && currentPeer == null)
+            throw new IllegalArgumentException("Could not find any config information");
+        return config;
+    }
+
+    private void parseAttribute(final Interface iface, final Peer peer, final int start, int end) {
+        int keyEnd = start;
+        while (keyEnd < end && line[keyEnd] != '=' && !isWhitespace(line[keyEnd]))
+            ++keyEnd;
+        final Attribute key = Attribute.match(line, start, keyEnd - start);
+        if (key == null)
+            throw error("Unknown attribute " + new String(line, start, keyEnd - start), null);
+        int valueStart = keyEnd;
+        while (valueStart < end && isWhitespace(line[valueStart]))
+            ++valueStart;
+        if (valueStart == end || line[valueStart] != '=')
+            throw error("Expected '=' after " + key.getToken(), null);
+        ++valueStart;
+        while (valueStart < end && isWhitespace(line[valueStart]))
+            ++valueStart;
+        try {
+            if (!key.isList()) {
+                setValue(iface, peer, key, new String(line, valueStart, end - valueStart));
+                return;
+            }
+            // Trailing separators are ignored, but empty elements in the middle are errors.
+            while (end > valueStart && (line[end - 1] == ',' || isWhitespace(line[end - 1])))
+                --end;
+            int elementStart = valueStart;
+            while (elementStart < end) {
+                int elementEnd = elementStart;
+                while (elementEnd < end && line[elementEnd] != ',')
+                    ++elementEnd;
+                final int next = elementEnd + 1;
+                while (elementEnd > elementStart && isWhitespace(line[elementEnd - 1]))
+                    --elementEnd;
+                setValue(iface, peer, key, new String(line, elementStart, elementEnd - elementStart));
+                elementStart = next;
+                while (elementStart < end && isWhitespace(line[elementStart]))
+                    ++elementStart;
+            }
+        } catch (final IllegalArgumentException e) {
+            throw error(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Read the next line into {@code line}, accepting any of "\n", "\r\n", or "\r" as a line
+     * terminator.
+     *
+     * @return false if the end of the input was reached before any characters were read.
+     */
+    private boolean readLine() throws IOException {
+        lineLength = 0;
+        boolean sawAny = false;
+        while (true) {
+            if (readPosition == readLength) {
+                readLength = reader.read(readBuffer, 0, readBuffer.length);
+                readPosition = 0;
+                if (readLength <= 0) {
+                    readLength = 0;
+                    if (sawAny)
+                        ++lineNumber;
+                    return sawAny;
+                }
+            }
+            final char c = readBuffer[readPosition++];
+            if (skipLineFeed) {
+                skipLineFeed = false;
+                if (c == '\n')
+                    continue;
+            }
+            sawAny = true;
+            if (c == '\n' || c == '\r') {
+                skipLineFeed = c == '\r';
+                ++lineNumber;
+                return true;
+            }
+            if (lineLength == line.length) {
+                final char[] newLine = new char[line.length * 2];
+                System.arraycopy(line, 0, newLine, 0, lineLength);
+                line = newLine;
+            }
+            line[lineLength++] = c;
+        }
+    }
+
+    private boolean regionEquals(final int start, final int end, final char[] expected) {
+        if (end - start != expected.length)
+            return false;
+        for (int i = 0; i < expected.length; ++i) {
+            if (Character.toLowerCase(line[start + i]) != Character.toLowerCase(expected[i]))
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: GPL-2.0-or-later
+ */
+
+package com.wireguard.config;
+
+import com.wireguard.crypto.KeyEncoding;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * Compact binary form of a parsed {@link Config}. Keys are stored as raw bytes and addresses as
+ * packed network-order bytes, so a snapshot can be turned back into a {@code Config} without
+ * any of the text parsing or validation that {@link Config#from} does. Snapshots are only meant
+ * to be read back by the same version of the app that wrote them.
+ */
+
+public final class ConfigSnapshot {
+    private static final int MAGIC = 0x57474353; // "WGCS"
+    // Limits well above anything real, to stop a corrupt count from exhausting memory.
+    private static final int MAX_COUNT = 1 << 20;
+    private static final int VERSION = 3;
+
+    private ConfigSnapshot() {
+        // Prevent instantiation.
+    }
+
+    /**
+     * Read a configuration from its snapshot.
+     *
+     * @throws IOException If the snapshot is truncated, corrupt, or from another version.
+     */
+    public static Config read(final DataInput in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION)
+            throw new IOException("Not a configuration snapshot");
+        final Config config = new Config();
+        try {
+            config.getInterface().readSnapshot(in);
+            for (int i = readCount(in); i > 0; --i) {
+                final Peer peer = new Peer();
+                peer.readSnapshot(in);
+                config.getPeers().add(peer);
+            }
+        } catch (final IllegalArgumentException e) {
+            throw new IOException("Corrupt configuration snapshot", e);
+        }
+        return config;
+    }
+
+    static InetAddress readAddress(final DataInput in) throws IOException {
+        final int length = in.readUnsignedByte();
+        if (length != 4 && length != 16)
+            throw new IOException("Invalid address length " + length);
+        final byte[] address = new byte[length];
+        in.readFully(address);
+        return InetAddress.getByAddress(address);
+    }
+
+    static IPCidr readCidr(final DataInput in) throws IOException {
+        final int length = in.readUnsignedByte();
+        final IPCidr cidr;
+        if (length == 4)
+            cidr = new IPCidr(false, 0, in.readInt() & 0xFFFFFFFFL, in.readUnsignedByte());
+        else if (length == 16)
+            cidr = new IPCidr(true, in.readLong(), in.readLong(), in.readUnsignedByte());
+        else
+            throw new IOException("Invalid address length " + length);
+        if (cidr.getCidr() > length * 8)
+            throw new IOException("Invalid prefix length " + cidr.getCidr());
+        return cidr;
+    }
+
+    static int readCount(final DataInput in) throws IOException {
+        final int count = in.readInt();
+        if (count < 0 || count > MAX_COUNT)
+            throw new IOException("Invalid count " + count);
+        return count;
+    }
+
+    static byte[] readKey(final DataInput in) throws IOException {
+        final byte[] key = new byte[KeyEncoding.KEY_LENGTH];
+        in.readFully(key);
+        return key;
+    }
+
+    /**
+     * Write the snapshot of a configuration.
+     */
+    public static void write(final Config config, final DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        config.getInterface().writeSnapshot(out);
+        out.writeInt(config.getPeers().size());
+        for (final Peer peer : config.getPeers())
+            peer.writeSnapshot(out);
+    }
+
+    static void writeAddress(final InetAddress address, final DataOutput out) throws IOException {
+        final byte[] bytes = address.getAddress();
+        out.writeByte(bytes.length);
+        out.write(bytes);
+    }
+
+    static void writeCidr(final IPCidr cidr, final DataOutput out) throws IOException {
+        if (cidr.isIpv6()) {
+            out.writeByte(16);
+            out.writeLong(cidr.getHighBits());
+            out.writeLong(cidr.getLowBits());
+        } else {
+            out.writeByte(4);
+            out.writeInt((int) cidr.getLowBits());
+        }
+        out.writeByte(cidr.getCidr());
+    }
+
+    static void writeKey(final String base64Key, final DataOutput out) throws IOException {
+        out.write(KeyEncoding.keyFromBase64(base64Key));
+    }
+}
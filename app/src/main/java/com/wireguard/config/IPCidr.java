@@ -6,43 +6,323 @@
 
 package com.wireguard.config;
 
-import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
-import java.util.Locale;
+import java.net.UnknownHostException;
 
-public class IPCidr {
-    private final InetAddress address;
-    private int cidr;
+/**
+ * An IPv4 or IPv6 address with a prefix length. The address is stored as plain numbers (the low
+ * 32 bits of {@code low} for IPv4, or {@code high} and {@code low} together for IPv6), and is
+ * parsed and formatted by hand, so that large lists of them cost neither reflection nor an
+ * {@link InetAddress} per entry.
+ */
 
-    @SuppressWarnings("MagicNumber")
-    public IPCidr(String in) {
-        cidr = -1;
+public final class IPCidr {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final byte cidr;
+    private final long high;
+    private final boolean ipv6;
+    private final long low;
+
+    /**
+     * Parse an address in CIDR notation. A missing or out-of-range prefix length is replaced by
+     * the full length of the address. An IPv4-mapped IPv6 address ({@code ::ffff:a.b.c.d}) with a
+     * prefix of at least 96 bits is taken to mean the IPv4 address it maps, as
+     * {@link InetAddress} does.
+     *
+     * @throws IllegalArgumentException If the address is not a numeric IPv4 or IPv6 address.
+     */
+    public IPCidr(final String in) {
+        int end = in.length();
+        int cidr = -1;
         final int slash = in.lastIndexOf('/');
-        if (slash != -1 && slash < in.length() - 1) {
-            try {
-                cidr = Integer.parseInt(in.substring(slash + 1), 10);
-                in = in.substring(0, slash);
-            } catch (final Exception ignored) {
+        if (slash != -1 && slash < end - 1 && end - slash <= 4) {
+            cidr = 0;
+            for (int i = slash + 1; i < end && cidr != -1; ++i) {
+                final char c = in.charAt(i);
+                cidr = c >= '0' && c <= '9' ? cidr * 10 + c - '0' : -1;
+            }
+            if (cidr != -1)
+                end = slash;
+        }
+        if (in.indexOf(':') == -1) {
+            ipv6 = false;
+            high = 0;
+            low = parseIpv4(in, 0, end) & 0xFFFFFFFFL;
+            this.cidr = (byte) (cidr >= 0 && cidr <= 32 ? cidr : 32);
+        } else {
+            final long[] words = parseIpv6(in, 0, end);
+            if (cidr < 0 || cidr > 128)
+                cidr = 128;
+            if (isIpv4Mapped(words[0], words[1]) && cidr >= 96) {
+                ipv6 = false;
+                high = 0;
+                low = words[1] & 0xFFFFFFFFL;
+                this.cidr = (byte) (cidr - 96);
+            } else {
+                ipv6 = true;
+                high = words[0];
+                low = words[1];
+                this.cidr = (byte) cidr;
             }
         }
-        address = Attribute.parseIPString(in);
-        if ((address instanceof Inet6Address) && (cidr > 128 || cidr < 0))
-            cidr = 128;
-        else if ((address instanceof Inet4Address) && (cidr > 32 || cidr < 0))
-            cidr = 32;
     }
 
-    public InetAddress getAddress() {
+    IPCidr(final boolean ipv6, final long high, final long low, final int cidr) {
+        this.ipv6 = ipv6;
+        this.high = high;
+        this.low = low;
+        this.cidr = (byte) cidr;
+    }
+
+    private static int hexValue(final char c) {
+        if (c >= '0' && c <= '9')
+            return c - '0';
+        if (c >= 'a' && c <= 'f')
+            return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F')
+            return c - 'A' + 10;
+        return -1;
+    }
+
+    @SuppressWarnings("MagicNumber")
+    private static boolean isIpv4Mapped(final long high, final long low) {
+        return high == 0 && low >>> 32 == 0xFFFF;
+    }
+
+    /**
+     * Parse a numeric IPv4 or IPv6 address without a prefix length. IPv4-mapped IPv6 addresses
+     * are returned as IPv4 addresses.
+     *
+     * @throws IllegalArgumentException If the string is not a numeric address.
+     */
+    static InetAddress parseAddress(final String in) {
+        if (in == null || in.isEmpty())
+            throw new IllegalArgumentException("Empty address");
+        final IPCidr parsed;
+        if (in.indexOf(':') == -1) {
+            parsed = new IPCidr(false, 0, parseIpv4(in, 0, in.length()) & 0xFFFFFFFFL, 32);
+        } else {
+            final long[] words = parseIpv6(in, 0, in.length());
+            if (isIpv4Mapped(words[0], words[1]))
+                parsed = new IPCidr(false, 0, words[1] & 0xFFFFFFFFL, 32);
+            else
+                parsed = new IPCidr(true, words[0], words[1], 128);
+        }
+        return parsed.getAddress();
+    }
+
+    @SuppressWarnings("MagicNumber")
+    private static int parseIpv4(final String in, final int start, final int end) {
+        int address = 0;
+        int i = start;
+        for (int octet = 0; octet < 4; ++octet) {
+            if (octet > 0) {
+                if (i == end || in.charAt(i) != '.')
+                    throw new IllegalArgumentException("Invalid IPv4 address: " + in);
+                ++i;
+            }
+            final int octetStart = i;
+            int value = 0;
+            while (i < end && i - octetStart < 3) {
+                final char c = in.charAt(i);
+                if (c < '0' || c > '9')
+                    break;
+                value = value * 10 + c - '0';
+                ++i;
+            }
+            if (i == octetStart || value > 255)
+                throw new IllegalArgumentException("Invalid IPv4 address: " + in);
+            address = address << 8 | value;
+        }
+        if (i != end)
+            throw new IllegalArgumentException("Invalid IPv4 address: " + in);
         return address;
     }
 
+    @SuppressWarnings("MagicNumber")
+    private static long[] parseIpv6(final String in, final int start, final int end) {
+        final int[] groups = new int[8];
+        int count = 0;
+        int gap = -1;
+        int i = start;
+        if (end - i >= 2 && in.charAt(i) == ':' && in.charAt(i + 1) == ':') {
+            gap = 0;
+            i += 2;
+        }
+        while (i < end) {
+            final int groupStart = i;
+            int value = 0;
+            int digit;
+            while (i < end && (digit = hexValue(in.charAt(i))) != -1) {
+                if (i - groupStart == 4)
+                    throw new IllegalArgumentException("Invalid IPv6 address: " + in);
+                value = value << 4 | digit;
+                ++i;
+            }
+            if (i < end && in.charAt(i) == '.') {
+                // The last 32 bits may be written as an IPv4 address.
+                if (count > 6)
+                    throw new IllegalArgumentException("Invalid IPv6 address: " + in);
+                final int ipv4 = parseIpv4(in, groupStart, end);
+                groups[count++] = ipv4 >>> 16;
+                groups[count++] = ipv4 & 0xFFFF;
+                i = end;
+                break;
+            }
+            if (i == groupStart || count == 8)
+                throw new IllegalArgumentException("Invalid IPv6 address: " + in);
+            groups[count++] = value;
+            if (i == end)
+                break;
+            if (in.charAt(i++) != ':' || i == end)
+                throw new IllegalArgumentException("Invalid IPv6 address: " + in);
+            if (in.charAt(i) == ':') {
+                if (gap != -1)
+                    throw new IllegalArgumentException("Invalid IPv6 address: " + in);
+                gap = count;
+                ++i;
+            }
+        }
+        if (gap == -1 ? count != 8 : count > 7)
+            throw new IllegalArgumentException("Invalid IPv6 address: " + in);
+        long high = 0;
+        long low = 0;
+        for (int group = 0; group < 8; ++group) {
+            final int index;
+            if (gap == -1 || group < gap)
+                index = group;
+            else if (group >= 8 - (count - gap))
+                index = group - (8 - count);
+            else
+                index = -1;
+            final long value = index == -1 ? 0 : groups[index];
+            if (group < 4)
+                high = high << 16 | value;
+            else
+                low = low << 16 | value;
+        }
+        return new long[]{high, low};
+    }
+
+    /**
+     * Append this address in CIDR notation. IPv6 addresses are written in the canonical form of
+     * RFC 5952, with the longest run of zero groups compressed.
+     */
+    @SuppressWarnings("MagicNumber")
+    public StringBuilder appendTo(final StringBuilder sb) {
+        if (!ipv6) {
+            sb.append((low >>> 24) & 0xFF).append('.').append((low >>> 16) & 0xFF).append('.')
+                    .append((low >>> 8) & 0xFF).append('.').append(low & 0xFF);
+            return sb.append('/').append(getCidr());
+        }
+        int bestStart = -1;
+        int bestLength = 1;
+        int runStart = -1;
+        for (int group = 0; group < 8; ++group) {
+            if (getGroup(group) == 0) {
+                if (runStart == -1)
+                    runStart = group;
+                if (group - runStart + 1 > bestLength) {
+                    bestStart = runStart;
+                    bestLength = group - runStart + 1;
+                }
+            } else {
+                runStart = -1;
+            }
+        }
+        for (int group = 0; group < 8; ++group) {
+            if (group == bestStart) {
+                sb.append("::");
+                group += bestLength - 1;
+                continue;
+            }
+            if (group > 0 && group != bestStart + bestLength)
+                sb.append(':');
+            final int value = getGroup(group);
+            boolean leading = true;
+            for (int shift = 12; shift >= 0; shift -= 4) {
+                final int digit = (value >>> shift) & 0xF;
+                if (leading && digit == 0 && shift > 0)
+                    continue;
+                leading = false;
+                sb.append(HEX_DIGITS[digit]);
+            }
+        }
+        return sb.append('/').append(getCidr());
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (!(obj instanceof IPCidr))
+            return false;
+        final IPCidr other = (IPCidr) obj;
+        return ipv6 == other.ipv6 && high == other.high && low == other.low && cidr == other.cidr;
+    }
+
+    public InetAddress getAddress() {
+        try {
+            // InetAddress.getByAddress would turn IPv4-mapped addresses into IPv4 ones.
+            if (ipv6)
+                return Inet6Address.getByAddress(null, toBytes(), -1);
+            return InetAddress.getByAddress(toBytes());
+        } catch (final UnknownHostException e) {
+            // Only thrown for an address of the wrong length.
+            throw new IllegalStateException(e);
+        }
+    }
+
     public int getCidr() {
-        return cidr;
+        return cidr & 0xFF;
+    }
+
+    private int getGroup(final int group) {
+        return (int) ((group < 4 ? high >>> (48 - group * 16) : low >>> (112 - group * 16))
+                & 0xFFFF);
+    }
+
+    /**
+     * @return The upper 64 bits of an IPv6 address, or zero for IPv4.
+     */
+    long getHighBits() {
+        return high;
+    }
+
+    /**
+     * @return The lower 64 bits of an IPv6 address, or the 32 bits of an IPv4 address.
+     */
+    long getLowBits() {
+        return low;
+    }
+
+    @Override
+    public int hashCode() {
+        final long bits = high * 31 + low;
+        return (int) (bits ^ (bits >>> 32)) * 31 + cidr + (ipv6 ? 1 << 8 : 0);
+    }
+
+    public boolean isIpv6() {
+        return ipv6;
+    }
+
+    @SuppressWarnings("MagicNumber")
+    private byte[] toBytes() {
+        final byte[] bytes = new byte[ipv6 ? 16 : 4];
+        if (ipv6) {
+            for (int i = 0; i < 8; ++i) {
+                bytes[i] = (byte) (high >>> (56 - i * 8));
+                bytes[i + 8] = (byte) (low >>> (56 - i * 8));
+            }
+        } else {
+            for (int i = 0; i < 4; ++i)
+                bytes[i] = (byte) (low >>> (24 - i * 8));
+        }
+        return bytes;
     }
 
     @Override
     public String toString() {
-        return String.format(Locale.getDefault(), "%s/%d", address.getHostAddress(), cidr);
+        return appendTo(new StringBuilder(ipv6 ? 43 : 18)).toString();
     }
 }
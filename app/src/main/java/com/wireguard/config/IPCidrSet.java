@@ -0,0 +1,230 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: GPL-2.0-or-later
+ */
+
+package com.wireguard.config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Operations on sets of addresses described by lists of CIDR blocks. Internally, every block is
+ * treated as a 128-bit address, with IPv4 addresses occupying the last 32 bits, so both families
+ * share the same arithmetic.
+ */
+
+public final class IPCidrSet {
+    private static final int IPV4_OFFSET = 96;
+    // IPv4 before IPv6, then by address, then larger blocks before the blocks they contain.
+    private static final Comparator<IPCidr> ORDER = (a, b) -> {
+        if (a.isIpv6() != b.isIpv6())
+            return a.isIpv6() ? 1 : -1;
+        int result = compareUnsigned(a.getHighBits(), b.getHighBits());
+        if (result == 0)
+            result = compareUnsigned(a.getLowBits(), b.getLowBits());
+        return result != 0 ? result : Integer.compare(a.getCidr(), b.getCidr());
+    };
+
+    private IPCidrSet() {
+        // Prevent instantiation.
+    }
+
+    /**
+     * Find the smallest list of blocks that covers exactly the same addresses as the input.
+     * Duplicates and blocks inside other blocks are dropped, and pairs of adjacent blocks that
+     * make up a larger block are replaced by it, repeatedly. Host bits are cleared, so every
+     * result is a network address. This takes O(n log n) time for n input blocks.
+     *
+     * @param cidrs The blocks to aggregate, of either or both families.
+     * @return The aggregated blocks, IPv4 first, each family sorted by address.
+     */
+    public static List<IPCidr> aggregate(final Collection<IPCidr> cidrs) {
+        final IPCidr[] sorted = new IPCidr[cidrs.size()];
+        int count = 0;
+        for (final IPCidr cidr : cidrs)
+            sorted[count++] = toNetwork(cidr);
+        Arrays.sort(sorted, ORDER);
+        final List<IPCidr> result = new ArrayList<>(count);
+        for (final IPCidr cidr : sorted) {
+            int size = result.size();
+            if (size > 0 && contains(result.get(size - 1), cidr))
+                continue;
+            IPCidr merged = cidr;
+            // Since the list is sorted, only the last block can be the sibling of a new one.
+            while (size > 0 && isSibling(result.get(size - 1), merged))
+                merged = withPrefix(result.remove(--size), merged.getCidr() - 1);
+            result.add(merged);
+        }
+        return result;
+    }
+
+    /**
+     * @return The number of leading bits two blocks have in common, counting IPv4 addresses as
+     * the last 32 bits of 128, and no more than the shorter of the two prefix lengths.
+     */
+    static int commonPrefixLength(final IPCidr a, final IPCidr b) {
+        final long highDifference = a.getHighBits() ^ b.getHighBits();
+        final int common = highDifference != 0 ? Long.numberOfLeadingZeros(highDifference) :
+                64 + Long.numberOfLeadingZeros(a.getLowBits() ^ b.getLowBits());
+        return Math.min(common, Math.min(prefix128(a), prefix128(b)));
+    }
+
+    private static int compareUnsigned(final long a, final long b) {
+        return Long.compare(a ^ Long.MIN_VALUE, b ^ Long.MIN_VALUE);
+    }
+
+    /**
+     * @return Whether every address in {@code inner} is also in {@code outer}.
+     */
+    static boolean contains(final IPCidr outer, final IPCidr inner) {
+        if (outer.isIpv6() != inner.isIpv6() || outer.getCidr() > inner.getCidr())
+            return false;
+        final int prefix = prefix128(outer);
+        return (inner.getHighBits() & highMask(prefix)) == outer.getHighBits() &&
+                (inner.getLowBits() & lowMask(prefix)) == outer.getLowBits();
+    }
+
+    /**
+     * @return The bit that distinguishes the two halves of a block, in the upper 64 bits, or
+     * zero if it is in the lower 64 bits.
+     */
+    private static long halfHighBit(final IPCidr block) {
+        final int bit = prefix128(block);
+        return bit < 64 ? 1L << (63 - bit) : 0;
+    }
+
+    /**
+     * @return The bit that distinguishes the two halves of a block, in the lower 64 bits, or
+     * zero if it is in the upper 64 bits.
+     */
+    private static long halfLowBit(final IPCidr block) {
+        final int bit = prefix128(block);
+        return bit >= 64 ? 1L << (127 - bit) : 0;
+    }
+
+    private static long highMask(final int prefix128) {
+        if (prefix128 >= 64)
+            return -1L;
+        return prefix128 == 0 ? 0 : -1L << (64 - prefix128);
+    }
+
+    /**
+     * @return Whether two network blocks are the two halves of the same larger block, with
+     * {@code low} being the lower half.
+     */
+    private static boolean isSibling(final IPCidr low, final IPCidr high) {
+        if (low.isIpv6() != high.isIpv6() || low.getCidr() != high.getCidr() ||
+                low.getCidr() == 0)
+            return false;
+        final int bit = prefix128(low) - 1;
+        final long highBit = bit < 64 ? 1L << (63 - bit) : 0;
+        final long lowBit = bit >= 64 ? 1L << (127 - bit) : 0;
+        return (low.getHighBits() & highBit) == 0 && (low.getLowBits() & lowBit) == 0 &&
+                (low.getHighBits() | highBit) == high.getHighBits() &&
+                (low.getLowBits() | lowBit) == high.getLowBits();
+    }
+
+    private static long lowMask(final int prefix128) {
+        if (prefix128 <= 64)
+            return 0;
+        return prefix128 == 128 ? -1L : -1L << (128 - prefix128);
+    }
+
+    /**
+     * Find the smallest list of blocks that covers every address in {@code included} that is not
+     * also in {@code excluded}. Both inputs are aggregated first, after which each included block
+     * is split in half only while an excluded block lies strictly inside it. This takes
+     * O((n + m) log(n + m) + k w) time, for k results and an address width of w bits.
+     *
+     * @param included The blocks to include, of either or both families.
+     * @param excluded The blocks to remove from them.
+     * @return The remaining blocks, in the same order as {@link #aggregate(Collection)}.
+     */
+    public static List<IPCidr> subtract(final Collection<IPCidr> included,
+                                        final Collection<IPCidr> excluded) {
+        final List<IPCidr> blocks = aggregate(included);
+        if (excluded.isEmpty())
+            return blocks;
+        final List<IPCidr> holes = aggregate(excluded);
+        final List<IPCidr> result = new ArrayList<>(blocks.size());
+        int first = 0;
+        for (final IPCidr block : blocks) {
+            // Skip the holes that lie entirely before this block.
+            while (first < holes.size() && ORDER.compare(holes.get(first), block) < 0 &&
+                    !contains(holes.get(first), block))
+                ++first;
+            if (first < holes.size() && contains(holes.get(first), block))
+                continue;
+            int last = first;
+            while (last < holes.size() && contains(block, holes.get(last)))
+                ++last;
+            subtract(block, holes, first, last, result);
+            first = last;
+        }
+        return result;
+    }
+
+    /**
+     * Add the parts of a block outside some holes to a list.
+     *
+     * @param block The block to split.
+     * @param holes Disjoint blocks in sorted order.
+     * @param from  The index of the first hole inside the block.
+     * @param to    The index after the last hole inside the block.
+     */
+    private static void subtract(final IPCidr block, final List<IPCidr> holes, final int from,
+                                 final int to, final List<IPCidr> result) {
+        if (from == to) {
+            result.add(block);
+            return;
+        }
+        if (contains(holes.get(from), block))
+            return;
+        final IPCidr lower = withPrefix(block, block.getCidr() + 1);
+        final IPCidr upper = new IPCidr(block.isIpv6(), block.getHighBits() | halfHighBit(block),
+                block.getLowBits() | halfLowBit(block), block.getCidr() + 1);
+        int middle = from;
+        while (middle < to && contains(lower, holes.get(middle)))
+            ++middle;
+        subtract(lower, holes, from, middle, result);
+        subtract(upper, holes, middle, to, result);
+    }
+
+    static int prefix128(final IPCidr cidr) {
+        return cidr.isIpv6() ? cidr.getCidr() : cidr.getCidr() + IPV4_OFFSET;
+    }
+
+    /**
+     * @return Whether a bit of an address is set, counting IPv4 addresses as the last 32 bits
+     * of 128.
+     */
+    static boolean testBit(final IPCidr cidr, final int bit) {
+        final long word = bit < 64 ? cidr.getHighBits() >>> (63 - bit) :
+                cidr.getLowBits() >>> (127 - bit);
+        return (word & 1) != 0;
+    }
+
+    /**
+     * @return The block with its host bits cleared, which may be the same object.
+     */
+    static IPCidr toNetwork(final IPCidr cidr) {
+        final int prefix = prefix128(cidr);
+        final long high = cidr.getHighBits() & highMask(prefix);
+        final long low = cidr.getLowBits() & lowMask(prefix);
+        if (high == cidr.getHighBits() && low == cidr.getLowBits())
+            return cidr;
+        return new IPCidr(cidr.isIpv6(), high, low, cidr.getCidr());
+    }
+
+    /**
+     * @return The block of the given size that starts at the same (network) address.
+     */
+    static IPCidr withPrefix(final IPCidr network, final int cidr) {
+        return toNetwork(new IPCidr(network.isIpv6(), network.getHighBits(),
+                network.getLowBits(), cidr));
+    }
+}
@@ -14,6 +14,9 @@ import android.os.Parcelable;
 import com.wireguard.android.BR;
 import com.wireguard.crypto.Keypair;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.List;
@@ -34,13 +37,16 @@ public class Interface {
         dnsList = new ArrayList<>();
     }
 
+    private void addAddress(final String address) {
+        if (address.isEmpty())
+            throw new IllegalArgumentException("Address is empty");
+        addressList.add(new IPCidr(address));
+    }
+
     private void addAddresses(final String[] addresses) {
         if (addresses != null && addresses.length > 0) {
-            for (final String addr : addresses) {
-                if (addr.isEmpty())
-                    throw new IllegalArgumentException("Address is empty");
-                addressList.add(new IPCidr(addr));
-            }
+            for (final String addr : addresses)
+                addAddress(addr);
         }
     }
 
@@ -52,6 +58,18 @@ public class Interface {
         }
     }
 
+    @Override
+    public boolean equals(final Object obj) {
+        if (obj == this)
+            return true;
+        if (obj == null || obj.getClass() != getClass())
+            return false;
+        final Interface other = (Interface) obj;
+        return addressList.equals(other.addressList) && dnsList.equals(other.dnsList) &&
+                (keypair == null ? other.keypair == null : keypair.equals(other.keypair)) &&
+                listenPort == other.listenPort && mtu == other.mtu;
+    }
+
     private String getAddressString() {
         if (addressList.isEmpty())
             return null;
@@ -111,29 +129,73 @@ public class Interface {
         return keypair.getPublicKey();
     }
 
+    @Override
+    public int hashCode() {
+        int hash = addressList.hashCode();
+        hash = 31 * hash + dnsList.hashCode();
+        hash = 31 * hash + (keypair != null ? keypair.hashCode() : 0);
+        hash = 31 * hash + listenPort;
+        return 31 * hash + mtu;
+    }
+
     public void parse(final String line) {
         final Attribute key = Attribute.match(line);
+        if (key == null)
+            throw new IllegalArgumentException(line);
+        if (key.isList()) {
+            final String[] values = key.parseList(line);
+            if (values != null) {
+                for (final String value : values)
+                    parse(key, value);
+            }
+        } else {
+            parse(key, key.parse(line));
+        }
+    }
+
+    /**
+     * Apply a single value of an attribute to this interface. List attributes are called once per
+     * element of the list.
+     *
+     * @param key   The attribute to set.
+     * @param value The (already trimmed) value of the attribute, or of one element of the list.
+     */
+    void parse(final Attribute key, final String value) {
         switch (key) {
             case ADDRESS:
-                addAddresses(key.parseList(line));
+                addAddress(value);
                 break;
             case DNS:
-                addDnses(key.parseList(line));
+                dnsList.add(Attribute.parseIPString(value));
                 break;
             case LISTEN_PORT:
-                setListenPortString(key.parse(line));
+                setListenPortString(value);
                 break;
             case MTU:
-                setMtuString(key.parse(line));
+                setMtuString(value);
                 break;
             case PRIVATE_KEY:
-                setPrivateKey(key.parse(line));
+                setPrivateKey(value);
                 break;
             default:
-                throw new IllegalArgumentException(line);
+                throw new IllegalArgumentException("Invalid attribute for [Interface]: " + key.getToken());
         }
     }
 
+    /**
+     * Restore this interface from the form written by {@link #writeSnapshot(DataOutput)},
+     * without validating it again.
+     */
+    void readSnapshot(final DataInput in) throws IOException {
+        listenPort = in.readInt();
+        mtu = in.readInt();
+        keypair = in.readBoolean() ? new Keypair(ConfigSnapshot.readKey(in)) : null;
+        for (int i = ConfigSnapshot.readCount(in); i > 0; --i)
+            addressList.add(ConfigSnapshot.readCidr(in));
+        for (int i = ConfigSnapshot.readCount(in); i > 0; --i)
+            dnsList.add(ConfigSnapshot.readAddress(in));
+    }
+
     private void setAddressString(final String addressString) {
         addressList.clear();
         addAddresses(Attribute.stringToList(addressString));
@@ -174,18 +236,42 @@ public class Interface {
 
     @Override
     public String toString() {
-        final StringBuilder sb = new StringBuilder().append("[Interface]\n");
+        final StringBuilder sb = new StringBuilder();
+        try {
+            writeTo(sb);
+        } catch (final IOException e) {
+            // StringBuilder never throws.
+            throw new IllegalStateException(e);
+        }
+        return sb.toString();
+    }
+
+    void writeTo(final Appendable out) throws IOException {
+        out.append("[Interface]\n");
         if (!addressList.isEmpty())
-            sb.append(Attribute.ADDRESS.composeWith(addressList));
+            Attribute.ADDRESS.writeCidrs(out, addressList);
         if (!dnsList.isEmpty())
-            sb.append(Attribute.DNS.composeWith(getDnsStrings()));
+            Attribute.DNS.writeAddresses(out, dnsList);
         if (listenPort != 0)
-            sb.append(Attribute.LISTEN_PORT.composeWith(listenPort));
+            Attribute.LISTEN_PORT.write(out, listenPort);
         if (mtu != 0)
-            sb.append(Attribute.MTU.composeWith(mtu));
+            Attribute.MTU.write(out, mtu);
         if (keypair != null)
-            sb.append(Attribute.PRIVATE_KEY.composeWith(keypair.getPrivateKey()));
-        return sb.toString();
+            Attribute.PRIVATE_KEY.write(out, keypair.getPrivateKey());
+    }
+
+    void writeSnapshot(final DataOutput out) throws IOException {
+        out.writeInt(listenPort);
+        out.writeInt(mtu);
+        out.writeBoolean(keypair != null);
+        if (keypair != null)
+            ConfigSnapshot.writeKey(keypair.getPrivateKey(), out);
+        out.writeInt(addressList.size());
+        for (final IPCidr address : addressList)
+            ConfigSnapshot.writeCidr(address, out);
+        out.writeInt(dnsList.size());
+        for (final InetAddress dns : dnsList)
+            ConfigSnapshot.writeAddress(dns, out);
     }
 
     public static class Observable extends BaseObservable implements Parcelable {
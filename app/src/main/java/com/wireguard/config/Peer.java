@@ -14,12 +14,16 @@ import android.os.Parcelable;
 import com.android.databinding.library.baseAdapters.BR;
 import com.wireguard.crypto.KeyEncoding;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.net.Inet6Address;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 
@@ -29,13 +33,17 @@ import java.util.Locale;
 
 public class Peer {
     private final List<IPCidr> allowedIPsList;
+    private final List<IPCidr> disallowedIPsList;
     private InetSocketAddress endpoint;
     private int persistentKeepalive;
     private String preSharedKey;
     private String publicKey;
+    // AllowedIPs minus DisallowedIPs, computed on first use; cleared whenever either list changes.
+    private IPCidr[] resolvedAllowedIPs;
 
     public Peer() {
         allowedIPsList = new ArrayList<>();
+        disallowedIPsList = new ArrayList<>();
     }
 
     private void addAllowedIPs(final String[] allowedIPs) {
@@ -46,8 +54,42 @@ public class Peer {
         }
     }
 
+    private void addDisallowedIPs(final String[] disallowedIPs) {
+        if (disallowedIPs != null && disallowedIPs.length > 0) {
+            for (final String disallowedIP : disallowedIPs) {
+                disallowedIPsList.add(new IPCidr(disallowedIP));
+            }
+        }
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (obj == this)
+            return true;
+        if (obj == null || obj.getClass() != getClass())
+            return false;
+        final Peer other = (Peer) obj;
+        return allowedIPsList.equals(other.allowedIPsList) &&
+                disallowedIPsList.equals(other.disallowedIPsList) &&
+                sameEndpoint(endpoint, other.endpoint) &&
+                persistentKeepalive == other.persistentKeepalive &&
+                (preSharedKey == null ? other.preSharedKey == null :
+                        preSharedKey.equals(other.preSharedKey)) &&
+                (publicKey == null ? other.publicKey == null : publicKey.equals(other.publicKey));
+    }
+
+    /**
+     * @return The addresses routed to this peer: its AllowedIPs, minus any DisallowedIPs.
+     */
     public IPCidr[] getAllowedIPs() {
-        return allowedIPsList.toArray(new IPCidr[allowedIPsList.size()]);
+        IPCidr[] allowedIPs = resolvedAllowedIPs;
+        if (allowedIPs == null) {
+            final List<IPCidr> list = disallowedIPsList.isEmpty() ? allowedIPsList :
+                    IPCidrSet.subtract(allowedIPsList, disallowedIPsList);
+            allowedIPs = list.toArray(new IPCidr[list.size()]);
+            resolvedAllowedIPs = allowedIPs;
+        }
+        return allowedIPs.clone();
     }
 
     private String getAllowedIPsString() {
@@ -56,6 +98,16 @@ public class Peer {
         return Attribute.iterableToString(allowedIPsList);
     }
 
+    public IPCidr[] getDisallowedIPs() {
+        return disallowedIPsList.toArray(new IPCidr[disallowedIPsList.size()]);
+    }
+
+    private String getDisallowedIPsString() {
+        if (disallowedIPsList.isEmpty())
+            return null;
+        return Attribute.iterableToString(disallowedIPsList);
+    }
+
     public InetSocketAddress getEndpoint() {
         return endpoint;
     }
@@ -102,32 +154,106 @@ public class Peer {
                 endpoint.getPort());
     }
 
+    @Override
+    public int hashCode() {
+        int hash = allowedIPsList.hashCode();
+        hash = 31 * hash + disallowedIPsList.hashCode();
+        hash = 31 * hash + (endpoint != null ? endpoint.getHostString().hashCode() * 31 +
+                endpoint.getPort() : 0);
+        hash = 31 * hash + persistentKeepalive;
+        hash = 31 * hash + (preSharedKey != null ? preSharedKey.hashCode() : 0);
+        return 31 * hash + (publicKey != null ? publicKey.hashCode() : 0);
+    }
+
     public void parse(final String line) {
         final Attribute key = Attribute.match(line);
+        if (key == null)
+            throw new IllegalArgumentException(line);
+        if (key.isList()) {
+            final String[] values = key.parseList(line);
+            if (values != null) {
+                for (final String value : values)
+                    parse(key, value);
+            }
+        } else {
+            parse(key, key.parse(line));
+        }
+    }
+
+    /**
+     * Apply a single value of an attribute to this peer. List attributes are called once per
+     * element of the list.
+     *
+     * @param key   The attribute to set.
+     * @param value The (already trimmed) value of the attribute, or of one element of the list.
+     */
+    void parse(final Attribute key, final String value) {
         switch (key) {
             case ALLOWED_IPS:
-                addAllowedIPs(key.parseList(line));
+                allowedIPsList.add(new IPCidr(value));
+                resolvedAllowedIPs = null;
+                break;
+            case DISALLOWED_IPS:
+                disallowedIPsList.add(new IPCidr(value));
+                resolvedAllowedIPs = null;
                 break;
             case ENDPOINT:
-                setEndpointString(key.parse(line));
+                setEndpointString(value);
                 break;
             case PERSISTENT_KEEPALIVE:
-                setPersistentKeepaliveString(key.parse(line));
+                setPersistentKeepaliveString(value);
                 break;
             case PRESHARED_KEY:
-                setPreSharedKey(key.parse(line));
+                setPreSharedKey(value);
                 break;
             case PUBLIC_KEY:
-                setPublicKey(key.parse(line));
+                setPublicKey(value);
                 break;
             default:
-                throw new IllegalArgumentException(line);
+                throw new IllegalArgumentException("Invalid attribute for [Peer]: " + key.getToken());
         }
     }
 
+    /**
+     * Restore this peer from the form written by {@link #writeSnapshot(DataOutput)}, without
+     * validating it again.
+     */
+    void readSnapshot(final DataInput in) throws IOException {
+        publicKey = in.readBoolean() ? KeyEncoding.keyToBase64(ConfigSnapshot.readKey(in)) : null;
+        preSharedKey = in.readBoolean() ? KeyEncoding.keyToBase64(ConfigSnapshot.readKey(in)) : null;
+        if (in.readBoolean()) {
+            final String host = in.readUTF();
+            endpoint = InetSocketAddress.createUnresolved(host, in.readUnsignedShort());
+        } else {
+            endpoint = null;
+        }
+        persistentKeepalive = in.readInt();
+        for (int i = ConfigSnapshot.readCount(in); i > 0; --i)
+            allowedIPsList.add(ConfigSnapshot.readCidr(in));
+        for (int i = ConfigSnapshot.readCount(in); i > 0; --i)
+            disallowedIPsList.add(ConfigSnapshot.readCidr(in));
+        resolvedAllowedIPs = null;
+    }
+
+    /**
+     * Compare endpoints as written, since resolving one replaces it with a different object.
+     */
+    private static boolean sameEndpoint(final InetSocketAddress a, final InetSocketAddress b) {
+        if (a == null || b == null)
+            return a == b;
+        return a.getPort() == b.getPort() && a.getHostString().equals(b.getHostString());
+    }
+
     private void setAllowedIPsString(final String allowedIPsString) {
         allowedIPsList.clear();
         addAllowedIPs(Attribute.stringToList(allowedIPsString));
+        resolvedAllowedIPs = null;
+    }
+
+    private void setDisallowedIPsString(final String disallowedIPsString) {
+        disallowedIPsList.clear();
+        addDisallowedIPs(Attribute.stringToList(disallowedIPsString));
+        resolvedAllowedIPs = null;
     }
 
     private void setEndpoint(final InetSocketAddress endpoint) {
@@ -180,18 +306,64 @@ public class Peer {
 
     @Override
     public String toString() {
-        final StringBuilder sb = new StringBuilder().append("[Peer]\n");
-        if (!allowedIPsList.isEmpty())
-            sb.append(Attribute.ALLOWED_IPS.composeWith(allowedIPsList));
-        if (endpoint != null)
-            sb.append(Attribute.ENDPOINT.composeWith(getEndpointString()));
+        final StringBuilder sb = new StringBuilder();
+        try {
+            writeTo(sb, false);
+        } catch (final IOException e) {
+            // StringBuilder never throws.
+            throw new IllegalStateException(e);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param resolveDisallowedIPs Whether to write AllowedIPs with the DisallowedIPs already
+     *                             removed, and leave DisallowedIPs out, for tools that do not
+     *                             understand it.
+     */
+    void writeTo(final Appendable out, final boolean resolveDisallowedIPs) throws IOException {
+        out.append("[Peer]\n");
+        if (resolveDisallowedIPs && !disallowedIPsList.isEmpty()) {
+            final IPCidr[] allowedIPs = getAllowedIPs();
+            if (allowedIPs.length > 0)
+                Attribute.ALLOWED_IPS.writeCidrs(out, Arrays.asList(allowedIPs));
+        } else {
+            if (!allowedIPsList.isEmpty())
+                Attribute.ALLOWED_IPS.writeCidrs(out, allowedIPsList);
+            if (!disallowedIPsList.isEmpty())
+                Attribute.DISALLOWED_IPS.writeCidrs(out, disallowedIPsList);
+        }
+        if (endpoint != null) {
+            out.append(Attribute.ENDPOINT.getToken()).append(" = ").append(endpoint.getHostString())
+                    .append(':').append(Integer.toString(endpoint.getPort())).append('\n');
+        }
         if (persistentKeepalive != 0)
-            sb.append(Attribute.PERSISTENT_KEEPALIVE.composeWith(persistentKeepalive));
+            Attribute.PERSISTENT_KEEPALIVE.write(out, persistentKeepalive);
         if (preSharedKey != null)
-            sb.append(Attribute.PRESHARED_KEY.composeWith(preSharedKey));
+            Attribute.PRESHARED_KEY.write(out, preSharedKey);
         if (publicKey != null)
-            sb.append(Attribute.PUBLIC_KEY.composeWith(publicKey));
-        return sb.toString();
+            Attribute.PUBLIC_KEY.write(out, publicKey);
+    }
+
+    void writeSnapshot(final DataOutput out) throws IOException {
+        out.writeBoolean(publicKey != null);
+        if (publicKey != null)
+            ConfigSnapshot.writeKey(publicKey, out);
+        out.writeBoolean(preSharedKey != null);
+        if (preSharedKey != null)
+            ConfigSnapshot.writeKey(preSharedKey, out);
+        out.writeBoolean(endpoint != null);
+        if (endpoint != null) {
+            out.writeUTF(endpoint.getHostString());
+            out.writeShort(endpoint.getPort());
+        }
+        out.writeInt(persistentKeepalive);
+        out.writeInt(allowedIPsList.size());
+        for (final IPCidr allowedIP : allowedIPsList)
+            ConfigSnapshot.writeCidr(allowedIP, out);
+        out.writeInt(disallowedIPsList.size());
+        for (final IPCidr disallowedIP : disallowedIPsList)
+            ConfigSnapshot.writeCidr(disallowedIP, out);
     }
 
     public static class Observable extends BaseObservable implements Parcelable {
@@ -207,6 +379,7 @@ public class Peer {
             }
         };
         private String allowedIPs;
+        private String disallowedIPs;
         private String endpoint;
         private String persistentKeepalive;
         private String preSharedKey;
@@ -218,6 +391,7 @@ public class Peer {
 
         private Observable(final Parcel in) {
             allowedIPs = in.readString();
+            disallowedIPs = in.readString();
             endpoint = in.readString();
             persistentKeepalive = in.readString();
             preSharedKey = in.readString();
@@ -230,6 +404,7 @@ public class Peer {
 
         public void commitData(final Peer parent) {
             parent.setAllowedIPsString(allowedIPs);
+            parent.setDisallowedIPsString(disallowedIPs);
             parent.setEndpointString(endpoint);
             parent.setPersistentKeepaliveString(persistentKeepalive);
             parent.setPreSharedKey(preSharedKey);
@@ -250,6 +425,11 @@ public class Peer {
             return allowedIPs;
         }
 
+        @Bindable
+        public String getDisallowedIPs() {
+            return disallowedIPs;
+        }
+
         @Bindable
         public String getEndpoint() {
             return endpoint;
@@ -272,6 +452,7 @@ public class Peer {
 
         protected void loadData(final Peer parent) {
             allowedIPs = parent.getAllowedIPsString();
+            disallowedIPs = parent.getDisallowedIPsString();
             endpoint = parent.getEndpointString();
             persistentKeepalive = parent.getPersistentKeepaliveString();
             preSharedKey = parent.getPreSharedKey();
@@ -283,6 +464,11 @@ public class Peer {
             notifyPropertyChanged(BR.allowedIPs);
         }
 
+        public void setDisallowedIPs(final String disallowedIPs) {
+            this.disallowedIPs = disallowedIPs;
+            notifyPropertyChanged(BR.disallowedIPs);
+        }
+
         public void setEndpoint(final String endpoint) {
             this.endpoint = endpoint;
             notifyPropertyChanged(BR.endpoint);
@@ -306,6 +492,7 @@ public class Peer {
         @Override
         public void writeToParcel(final Parcel dest, final int flags) {
             dest.writeString(allowedIPs);
+            dest.writeString(disallowedIPs);
             dest.writeString(endpoint);
             dest.writeString(persistentKeepalive);
             dest.writeString(preSharedKey);
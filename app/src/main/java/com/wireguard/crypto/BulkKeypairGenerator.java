@@ -0,0 +1,166 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: GPL-2.0-or-later
+ */
+
+package com.wireguard.crypto;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Generates large numbers of keypairs in parallel on a fork/join pool. Each keypair is handed to a
+ * consumer as soon as it is ready, instead of being collected, and the keypairs are identical to
+ * those produced by {@link Keypair} for the same private keys.
+ */
+
+public final class BulkKeypairGenerator {
+    // Number of keys each leaf task derives before checking back in with the pool.
+    private static final int BATCH_SIZE = 64;
+    private static final ThreadLocal<SecureRandom> RANDOM = new ThreadLocal<SecureRandom>() {
+        @Override
+        protected SecureRandom initialValue() {
+            return new SecureRandom();
+        }
+    };
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Create a generator backed by the common pool, which needs no shutting down.
+     */
+    public BulkKeypairGenerator() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Create a generator backed by the given pool. The pool remains owned by the caller, which
+     * must shut it down once it is no longer needed.
+     */
+    public BulkKeypairGenerator(final ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Derive the keypairs for a set of existing private keys.
+     *
+     * @param privateKeys The 32-byte private keys. They are copied, not retained.
+     * @param consumer    Receives each keypair along with the index of its private key.
+     * @return A handle to wait for or cancel the job.
+     */
+    public Job derive(final byte[][] privateKeys, final KeypairConsumer consumer) {
+        for (final byte[] privateKey : privateKeys) {
+            if (privateKey == null || privateKey.length != KeyEncoding.KEY_LENGTH)
+                throw new IllegalArgumentException("WireGuard keys must be 32 bytes");
+        }
+        return submit(privateKeys.length, privateKeys, consumer);
+    }
+
+    /**
+     * Generate new random keypairs.
+     *
+     * @param count    The number of keypairs to generate.
+     * @param consumer Receives each keypair along with its index in {@code [0, count)}.
+     * @return A handle to wait for or cancel the job.
+     */
+    public Job generate(final int count, final KeypairConsumer consumer) {
+        if (count < 0)
+            throw new IllegalArgumentException("Keypair count must not be negative");
+        return submit(count, null, consumer);
+    }
+
+    private Job submit(final int count, final byte[][] privateKeys,
+                       final KeypairConsumer consumer) {
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        final BatchTask task = new BatchTask(cancelled, consumer, privateKeys, 0, count);
+        pool.execute(task);
+        return new Job(task, cancelled);
+    }
+
+    /**
+     * Receiver for generated keypairs. It is called concurrently from the pool's worker threads,
+     * in no particular order, so it must be thread-safe.
+     */
+    @FunctionalInterface
+    public interface KeypairConsumer {
+        void accept(int index, Keypair keypair);
+    }
+
+    private static final class BatchTask extends RecursiveAction {
+        private final AtomicBoolean cancelled;
+        private final KeypairConsumer consumer;
+        private final int end;
+        private final byte[][] privateKeys;
+        private final int start;
+
+        private BatchTask(final AtomicBoolean cancelled, final KeypairConsumer consumer,
+                          final byte[][] privateKeys, final int start, final int end) {
+            this.cancelled = cancelled;
+            this.consumer = consumer;
+            this.privateKeys = privateKeys;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (cancelled.get())
+                return;
+            if (end - start > BATCH_SIZE) {
+                final int middle = (start + end) >>> 1;
+                invokeAll(new BatchTask(cancelled, consumer, privateKeys, start, middle),
+                        new BatchTask(cancelled, consumer, privateKeys, middle, end));
+                return;
+            }
+            for (int i = start; i < end && !cancelled.get(); ++i) {
+                final byte[] privateKey = privateKeys != null ? privateKeys[i].clone()
+                        : Keypair.generatePrivateKey(RANDOM.get());
+                final byte[] publicKey = new byte[KeyEncoding.KEY_LENGTH];
+                Curve25519.eval(publicKey, 0, privateKey, null);
+                consumer.accept(i, new Keypair(privateKey, publicKey));
+            }
+        }
+    }
+
+    /**
+     * Handle to a running bulk generation job.
+     */
+    public static final class Job {
+        private final AtomicBoolean cancelled;
+        private final RecursiveAction task;
+
+        private Job(final RecursiveAction task, final AtomicBoolean cancelled) {
+            this.task = task;
+            this.cancelled = cancelled;
+        }
+
+        /**
+         * Wait for the job to finish.
+         *
+         * @throws ExecutionException If the consumer threw an exception.
+         * @throws java.util.concurrent.CancellationException If the job was cancelled.
+         */
+        public void await() throws ExecutionException, InterruptedException {
+            task.get();
+        }
+
+        /**
+         * Stop handing out keypairs. Keypairs already being delivered may still arrive.
+         */
+        public void cancel() {
+            cancelled.set(true);
+            task.cancel(false);
+        }
+
+        public boolean isCancelled() {
+            return cancelled.get();
+        }
+
+        public boolean isDone() {
+            return task.isDone();
+        }
+    }
+}
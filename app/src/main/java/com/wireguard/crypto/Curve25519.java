@@ -27,6 +27,13 @@ public final class Curve25519 {
     // Numbers modulo 2^255 - 19 are broken up into ten 26-bit words.
     private static final int NUM_LIMBS_255BIT = 10;
     private static final int NUM_LIMBS_510BIT = 20;
+    // Scratch state is reused by each thread, so evaluation doesn't allocate.
+    private static final ThreadLocal<Curve25519> STATE = new ThreadLocal<Curve25519>() {
+        @Override
+        protected Curve25519 initialValue() {
+            return new Curve25519();
+        }
+    };
     private final int[] A;
     private final int[] AA;
     private final int[] B;
@@ -83,6 +90,37 @@ public final class Curve25519 {
         }
     }
 
+    /**
+     * Derives the public keys corresponding to a batch of private keys.
+     *
+     * @param privateKeys The private keys to use in the evaluation.
+     * @return The public keys, in the same order as the private keys.
+     */
+    public static byte[][] derivePublicKeys(final byte[][] privateKeys) {
+        final byte[][] publicKeys = new byte[privateKeys.length][];
+        for (int i = 0; i < privateKeys.length; ++i) {
+            publicKeys[i] = new byte[KeyEncoding.KEY_LENGTH];
+            eval(publicKeys[i], 0, privateKeys[i], null);
+        }
+        return publicKeys;
+    }
+
+    /**
+     * Derives the public keys corresponding to a batch of private keys, without allocating.
+     *
+     * @param privateKeys The private keys to use in the evaluation.
+     * @param result      Buffer to place the public keys into, one after the other, in the same
+     *                    order as the private keys.
+     * @param offset      Offset into the result buffer.
+     */
+    public static void derivePublicKeys(final byte[][] privateKeys,
+                                        final byte[] result, final int offset) {
+        if (result.length - offset < privateKeys.length * KeyEncoding.KEY_LENGTH)
+            throw new IllegalArgumentException("Result buffer is too small");
+        for (int i = 0; i < privateKeys.length; ++i)
+            eval(result, offset + i * KeyEncoding.KEY_LENGTH, privateKeys[i], null);
+    }
+
     /**
      * Evaluates the Curve25519 curve.
      *
@@ -94,7 +132,7 @@ public final class Curve25519 {
      */
     public static void eval(final byte[] result, final int offset,
                             final byte[] privateKey, final byte[] publicKey) {
-        final Curve25519 state = new Curve25519();
+        final Curve25519 state = STATE.get();
         try {
             // Unpack the public key value.  If null, use 9 as the base point.
             Arrays.fill(state.x_1, 0);
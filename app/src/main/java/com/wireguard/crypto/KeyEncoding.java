@@ -25,134 +25,229 @@ public final class KeyEncoding {
         // Prevent instantiation.
     }
 
-    private static int decodeBase64(final char[] src, final int srcOffset) {
+    /**
+     * Decode a single base64 character in constant time.
+     *
+     * @return The 6-bit value of the character, or -1 if it is not a base64 character.
+     */
+    private static int decodeBase64(final int c) {
+        return -1
+                + ((((('A' - 1) - c) & (c - ('Z' + 1))) >>> 8) & (c - 64))
+                + ((((('a' - 1) - c) & (c - ('z' + 1))) >>> 8) & (c - 70))
+                + ((((('0' - 1) - c) & (c - ('9' + 1))) >>> 8) & (c + 5))
+                + ((((('+' - 1) - c) & (c - ('+' + 1))) >>> 8) & 63)
+                + ((((('/' - 1) - c) & (c - ('/' + 1))) >>> 8) & 64);
+    }
+
+    private static int decodeBase64(final CharSequence src, final int srcOffset) {
         int val = 0;
-        for (int i = 0; i < 4; ++i) {
-            final char c = src[i + srcOffset];
-            val |= (-1
-                    + ((((('A' - 1) - c) & (c - ('Z' + 1))) >>> 8) & (c - 64))
-                    + ((((('a' - 1) - c) & (c - ('z' + 1))) >>> 8) & (c - 70))
-                    + ((((('0' - 1) - c) & (c - ('9' + 1))) >>> 8) & (c + 5))
-                    + ((((('+' - 1) - c) & (c - ('+' + 1))) >>> 8) & 63)
-                    + ((((('/' - 1) - c) & (c - ('/' + 1))) >>> 8) & 64)
-            ) << (18 - 6 * i);
-        }
+        for (int i = 0; i < 4; ++i)
+            val |= decodeBase64(src.charAt(i + srcOffset)) << (18 - 6 * i);
         return val;
     }
 
-    private static void encodeBase64(final byte[] src, final int srcOffset,
+    /**
+     * Decode the last, padded, group of a base64 key: three characters and an '='.
+     */
+    private static int decodeBase64Final(final CharSequence src, final int srcOffset) {
+        return decodeBase64(src.charAt(srcOffset)) << 18
+                | decodeBase64(src.charAt(srcOffset + 1)) << 12
+                | decodeBase64(src.charAt(srcOffset + 2)) << 6
+                | decodeBase64('A');
+    }
+
+    private static int decodeHex(final int c) {
+        final int cNum = c ^ 48;
+        final int cNum0 = ((cNum - 10) >>> 8) & 0xff;
+        final int cAlpha = (c & ~32) - 55;
+        final int cAlpha0 = (((cAlpha - 10) ^ (cAlpha - 16)) >>> 8) & 0xff;
+        // Bit 8 of the result is set if c is not a hex digit.
+        return (((cNum0 | cAlpha0) - 1) & 0x100) | (cNum0 & cNum) | (cAlpha0 & cAlpha);
+    }
+
+    private static void encodeBase64(final int b0, final int b1, final int b2,
                                      final char[] dest, final int destOffset) {
-        final byte[] input = {
-                (byte) ((src[srcOffset] >>> 2) & 63),
-                (byte) ((src[srcOffset] << 4 | ((src[1 + srcOffset] & 0xff) >>> 4)) & 63),
-                (byte) ((src[1 + srcOffset] << 2 | ((src[2 + srcOffset] & 0xff) >>> 6)) & 63),
-                (byte) ((src[2 + srcOffset]) & 63),
-        };
-        for (int i = 0; i < 4; ++i) {
-            dest[i + destOffset] = (char) (input[i] + 'A'
-                    + (((25 - input[i]) >>> 8) & 6)
-                    - (((51 - input[i]) >>> 8) & 75)
-                    - (((61 - input[i]) >>> 8) & 15)
-                    + (((62 - input[i]) >>> 8) & 3));
+        encodeBase64Char((b0 >>> 2) & 63, dest, destOffset);
+        encodeBase64Char((b0 << 4 | (b1 >>> 4)) & 63, dest, destOffset + 1);
+        encodeBase64Char((b1 << 2 | (b2 >>> 6)) & 63, dest, destOffset + 2);
+        encodeBase64Char(b2 & 63, dest, destOffset + 3);
+    }
+
+    private static void encodeBase64Char(final int input, final char[] dest, final int destOffset) {
+        dest[destOffset] = (char) (input + 'A'
+                + (((25 - input) >>> 8) & 6)
+                - (((51 - input) >>> 8) & 75)
+                - (((61 - input) >>> 8) & 15)
+                + (((62 - input) >>> 8) & 3));
+    }
+
+    private static char encodeHex(final int nibble) {
+        return (char) (87 + nibble + (((nibble - 10) >> 8) & ~38));
+    }
+
+    /**
+     * Transcode a base64 key directly to hex, without materializing the key itself. The key is
+     * checked in constant time; if it is invalid, the contents of {@code dest} are undefined.
+     *
+     * @param src        Buffer containing the 44-character base64 key (e.g. a String or CharBuffer).
+     * @param srcOffset  Offset of the key in {@code src}.
+     * @param dest       Buffer to receive the 64-character hex key.
+     * @param destOffset Offset into {@code dest}.
+     */
+    public static void base64ToHex(final CharSequence src, final int srcOffset,
+                                   final char[] dest, final int destOffset) {
+        if (src.length() - srcOffset < KEY_LENGTH_BASE64 ||
+                src.charAt(srcOffset + KEY_LENGTH_BASE64 - 1) != '=')
+            throw new IllegalArgumentException(KEY_LENGTH_BASE64_EXCEPTION_MESSAGE);
+        if (dest.length - destOffset < KEY_LENGTH_HEX)
+            throw new IllegalArgumentException(KEY_LENGTH_HEX_EXCEPTION_MESSAGE);
+        int i;
+        int ret = 0;
+        for (i = 0; i < KEY_LENGTH / 3; ++i) {
+            final int val = decodeBase64(src, srcOffset + i * 4);
+            ret |= val >>> 31;
+            for (int j = 0; j < 6; ++j)
+                dest[destOffset + i * 6 + j] = encodeHex((val >>> (20 - 4 * j)) & 0xf);
         }
+        final int val = decodeBase64Final(src, srcOffset + i * 4);
+        ret |= (val >>> 31) | (val & 0xff);
+        for (int j = 0; j < 4; ++j)
+            dest[destOffset + i * 6 + j] = encodeHex((val >>> (20 - 4 * j)) & 0xf);
+        if (ret != 0)
+            throw new IllegalArgumentException(KEY_LENGTH_BASE64_EXCEPTION_MESSAGE);
     }
 
     public static byte[] keyFromBase64(final String str) {
-        final char[] input = str.toCharArray();
+        if (str.length() != KEY_LENGTH_BASE64)
+            throw new IllegalArgumentException(KEY_LENGTH_BASE64_EXCEPTION_MESSAGE);
         final byte[] key = new byte[KEY_LENGTH];
-        if (input.length != KEY_LENGTH_BASE64 || input[KEY_LENGTH_BASE64 - 1] != '=')
+        keyFromBase64(str, 0, key, 0);
+        return key;
+    }
+
+    /**
+     * Decode a base64 key into a caller-supplied buffer.
+     *
+     * @param src        Buffer containing the 44-character base64 key (e.g. a String or CharBuffer).
+     * @param srcOffset  Offset of the key in {@code src}.
+     * @param dest       Buffer to receive the 32-byte key.
+     * @param destOffset Offset into {@code dest}.
+     */
+    public static void keyFromBase64(final CharSequence src, final int srcOffset,
+                                     final byte[] dest, final int destOffset) {
+        if (src.length() - srcOffset < KEY_LENGTH_BASE64 ||
+                src.charAt(srcOffset + KEY_LENGTH_BASE64 - 1) != '=')
             throw new IllegalArgumentException(KEY_LENGTH_BASE64_EXCEPTION_MESSAGE);
+        if (dest.length - destOffset < KEY_LENGTH)
+            throw new IllegalArgumentException(KEY_LENGTH_EXCEPTION_MESSAGE);
         int i;
         int ret = 0;
         for (i = 0; i < KEY_LENGTH / 3; ++i) {
-            final int val = decodeBase64(input, i * 4);
+            final int val = decodeBase64(src, srcOffset + i * 4);
             ret |= val >>> 31;
-            key[i * 3] = (byte) ((val >>> 16) & 0xff);
-            key[i * 3 + 1] = (byte) ((val >>> 8) & 0xff);
-            key[i * 3 + 2] = (byte) (val & 0xff);
+            dest[destOffset + i * 3] = (byte) ((val >>> 16) & 0xff);
+            dest[destOffset + i * 3 + 1] = (byte) ((val >>> 8) & 0xff);
+            dest[destOffset + i * 3 + 2] = (byte) (val & 0xff);
         }
-        final char[] endSegment = {
-                input[i * 4],
-                input[i * 4 + 1],
-                input[i * 4 + 2],
-                'A',
-        };
-        final int val = decodeBase64(endSegment, 0);
+        final int val = decodeBase64Final(src, srcOffset + i * 4);
         ret |= (val >>> 31) | (val & 0xff);
-        key[i * 3] = (byte) ((val >>> 16) & 0xff);
-        key[i * 3 + 1] = (byte) ((val >>> 8) & 0xff);
+        dest[destOffset + i * 3] = (byte) ((val >>> 16) & 0xff);
+        dest[destOffset + i * 3 + 1] = (byte) ((val >>> 8) & 0xff);
 
         if (ret != 0)
             throw new IllegalArgumentException(KEY_LENGTH_BASE64_EXCEPTION_MESSAGE);
-        return key;
     }
 
     public static byte[] keyFromHex(final String str) {
-        final char[] input = str.toCharArray();
+        if (str.length() != KEY_LENGTH_HEX)
+            throw new IllegalArgumentException(KEY_LENGTH_HEX_EXCEPTION_MESSAGE);
         final byte[] key = new byte[KEY_LENGTH];
-        if (input.length != KEY_LENGTH_HEX)
+        keyFromHex(str, 0, key, 0);
+        return key;
+    }
+
+    /**
+     * Decode a hex key into a caller-supplied buffer.
+     *
+     * @param src        Buffer containing the 64-character hex key (e.g. a String or CharBuffer).
+     * @param srcOffset  Offset of the key in {@code src}.
+     * @param dest       Buffer to receive the 32-byte key.
+     * @param destOffset Offset into {@code dest}.
+     */
+    public static void keyFromHex(final CharSequence src, final int srcOffset,
+                                  final byte[] dest, final int destOffset) {
+        if (src.length() - srcOffset < KEY_LENGTH_HEX)
             throw new IllegalArgumentException(KEY_LENGTH_HEX_EXCEPTION_MESSAGE);
+        if (dest.length - destOffset < KEY_LENGTH)
+            throw new IllegalArgumentException(KEY_LENGTH_EXCEPTION_MESSAGE);
         int ret = 0;
-
         for (int i = 0; i < KEY_LENGTH_HEX; i += 2) {
-            int c;
-            int cNum;
-            int cNum0;
-            int cAlpha;
-            int cAlpha0;
-            int cVal;
-            final int cAcc;
-
-            c = input[i];
-            cNum = c ^ 48;
-            cNum0 = ((cNum - 10) >>> 8) & 0xff;
-            cAlpha = (c & ~32) - 55;
-            cAlpha0 = (((cAlpha - 10) ^ (cAlpha - 16)) >>> 8) & 0xff;
-            ret |= ((cNum0 | cAlpha0) - 1) >>> 8;
-            cVal = (cNum0 & cNum) | (cAlpha0 & cAlpha);
-            cAcc = cVal * 16;
-
-            c = input[i + 1];
-            cNum = c ^ 48;
-            cNum0 = ((cNum - 10) >>> 8) & 0xff;
-            cAlpha = (c & ~32) - 55;
-            cAlpha0 = (((cAlpha - 10) ^ (cAlpha - 16)) >>> 8) & 0xff;
-            ret |= ((cNum0 | cAlpha0) - 1) >>> 8;
-            cVal = (cNum0 & cNum) | (cAlpha0 & cAlpha);
-            key[i / 2] = (byte) (cAcc | cVal);
+            final int high = decodeHex(src.charAt(srcOffset + i));
+            final int low = decodeHex(src.charAt(srcOffset + i + 1));
+            ret |= (high | low) >>> 8;
+            dest[destOffset + i / 2] = (byte) ((high & 0xf) << 4 | (low & 0xf));
         }
         if (ret != 0)
             throw new IllegalArgumentException(KEY_LENGTH_HEX_EXCEPTION_MESSAGE);
-        return key;
     }
 
     public static String keyToBase64(final byte[] key) {
-        final char[] output = new char[KEY_LENGTH_BASE64];
         if (key.length != KEY_LENGTH)
             throw new IllegalArgumentException(KEY_LENGTH_EXCEPTION_MESSAGE);
-        int i;
-        for (i = 0; i < KEY_LENGTH / 3; ++i)
-            encodeBase64(key, i * 3, output, i * 4);
-        final byte[] endSegment = {
-                key[i * 3],
-                key[i * 3 + 1],
-                0,
-        };
-        encodeBase64(endSegment, 0, output, i * 4);
-        output[KEY_LENGTH_BASE64 - 1] = '=';
+        final char[] output = new char[KEY_LENGTH_BASE64];
+        keyToBase64(key, 0, output, 0);
         return new String(output);
     }
 
+    /**
+     * Encode a key as base64 into a caller-supplied buffer.
+     *
+     * @param src        Buffer containing the 32-byte key.
+     * @param srcOffset  Offset of the key in {@code src}.
+     * @param dest       Buffer to receive the 44-character base64 key.
+     * @param destOffset Offset into {@code dest}.
+     */
+    public static void keyToBase64(final byte[] src, final int srcOffset,
+                                   final char[] dest, final int destOffset) {
+        if (src.length - srcOffset < KEY_LENGTH)
+            throw new IllegalArgumentException(KEY_LENGTH_EXCEPTION_MESSAGE);
+        if (dest.length - destOffset < KEY_LENGTH_BASE64)
+            throw new IllegalArgumentException(KEY_LENGTH_BASE64_EXCEPTION_MESSAGE);
+        int i;
+        for (i = 0; i < KEY_LENGTH / 3; ++i) {
+            encodeBase64(src[srcOffset + i * 3] & 0xff, src[srcOffset + i * 3 + 1] & 0xff,
+                    src[srcOffset + i * 3 + 2] & 0xff, dest, destOffset + i * 4);
+        }
+        encodeBase64(src[srcOffset + i * 3] & 0xff, src[srcOffset + i * 3 + 1] & 0xff, 0,
+                dest, destOffset + i * 4);
+        dest[destOffset + KEY_LENGTH_BASE64 - 1] = '=';
+    }
+
     public static String keyToHex(final byte[] key) {
-        final char[] output = new char[KEY_LENGTH_HEX];
         if (key.length != KEY_LENGTH)
             throw new IllegalArgumentException(KEY_LENGTH_EXCEPTION_MESSAGE);
+        final char[] output = new char[KEY_LENGTH_HEX];
+        keyToHex(key, 0, output, 0);
+        return new String(output);
+    }
+
+    /**
+     * Encode a key as hex into a caller-supplied buffer.
+     *
+     * @param src        Buffer containing the 32-byte key.
+     * @param srcOffset  Offset of the key in {@code src}.
+     * @param dest       Buffer to receive the 64-character hex key.
+     * @param destOffset Offset into {@code dest}.
+     */
+    public static void keyToHex(final byte[] src, final int srcOffset,
+                                final char[] dest, final int destOffset) {
+        if (src.length - srcOffset < KEY_LENGTH)
+            throw new IllegalArgumentException(KEY_LENGTH_EXCEPTION_MESSAGE);
+        if (dest.length - destOffset < KEY_LENGTH_HEX)
+            throw new IllegalArgumentException(KEY_LENGTH_HEX_EXCEPTION_MESSAGE);
         for (int i = 0; i < KEY_LENGTH; ++i) {
-            output[i * 2] = (char) (87 + (key[i] >> 4 & 0xf)
-                    + ((((key[i] >> 4 & 0xf) - 10) >> 8) & ~38));
-            output[i * 2 + 1] = (char) (87 + (key[i] & 0xf)
-                    + ((((key[i] & 0xf) - 10) >> 8) & ~38));
+            dest[destOffset + i * 2] = encodeHex(src[srcOffset + i] >> 4 & 0xf);
+            dest[destOffset + i * 2 + 1] = encodeHex(src[srcOffset + i] & 0xf);
         }
-        return new String(output);
     }
 }
@@ -7,6 +7,7 @@
 package com.wireguard.crypto;
 
 import java.security.SecureRandom;
+import java.util.Arrays;
 
 /**
  * Represents a Curve25519 keypair as used by WireGuard.
@@ -14,15 +15,27 @@ import java.security.SecureRandom;
 
 public class Keypair {
     private final byte[] privateKey;
-    private final byte[] publicKey;
+    private volatile byte[] publicKey;
 
     public Keypair() {
-        this(generatePrivateKey());
+        this(generatePrivateKey(new SecureRandom()));
     }
 
-    private Keypair(final byte[] privateKey) {
+    /**
+     * Create a keypair from a raw private key. The public key is not derived until it is first
+     * asked for, so keypairs that are only stored or passed along never pay for it.
+     *
+     * @param privateKey The 32-byte private key. It is copied, not retained.
+     */
+    public Keypair(final byte[] privateKey) {
+        if (privateKey.length != KeyEncoding.KEY_LENGTH)
+            throw new IllegalArgumentException("WireGuard keys must be 32 bytes");
+        this.privateKey = privateKey.clone();
+    }
+
+    Keypair(final byte[] privateKey, final byte[] publicKey) {
         this.privateKey = privateKey;
-        publicKey = generatePublicKey(privateKey);
+        this.publicKey = publicKey;
     }
 
     public Keypair(final String privateKey) {
@@ -30,8 +43,7 @@ public class Keypair {
     }
 
     @SuppressWarnings("MagicNumber")
-    private static byte[] generatePrivateKey() {
-        final SecureRandom secureRandom = new SecureRandom();
+    static byte[] generatePrivateKey(final SecureRandom secureRandom) {
         final byte[] privateKey = new byte[KeyEncoding.KEY_LENGTH];
         secureRandom.nextBytes(privateKey);
         privateKey[0] &= 248;
@@ -46,11 +58,28 @@ public class Keypair {
         return publicKey;
     }
 
+    @Override
+    public boolean equals(final Object obj) {
+        // The public key is derived from the private key, so it needs no comparison.
+        return obj instanceof Keypair && Arrays.equals(privateKey, ((Keypair) obj).privateKey);
+    }
+
     public String getPrivateKey() {
         return KeyEncoding.keyToBase64(privateKey);
     }
 
     public String getPublicKey() {
-        return KeyEncoding.keyToBase64(publicKey);
+        byte[] key = publicKey;
+        if (key == null) {
+            // Racing threads derive the same key, so it doesn't matter which one wins.
+            key = generatePublicKey(privateKey);
+            publicKey = key;
+        }
+        return KeyEncoding.keyToBase64(key);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(privateKey);
     }
 }
@@ -0,0 +1,143 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: GPL-2.0-or-later
+ */
+
+package com.wireguard.android.backend;
+
+import com.wireguard.config.Config;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the caching, failure, and address family handling of {@link EndpointResolver}, with a
+ * local table of names and a clock that only moves when told to.
+ */
+
+public class EndpointResolverTest {
+    private static final String PEER_KEY = "HIgo9xNzJMWLKASShiTqIybxZ0U3wGLiUeJ1PKf8ykw=";
+
+    private final AtomicLong clock = new AtomicLong(1000);
+    private final Map<String, AtomicInteger> lookupCounts = new ConcurrentHashMap<>();
+
+    private static InetAddress address(final String host, final int... bytes)
+            throws UnknownHostException {
+        final byte[] address = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; ++i)
+            address[i] = (byte) bytes[i];
+        return InetAddress.getByAddress(host, address);
+    }
+
+    private static Config config(final String addresses, final String... hosts)
+            throws IOException {
+        final StringBuilder sb = new StringBuilder("[Interface]\n");
+        if (!addresses.isEmpty())
+            sb.append("Address = ").append(addresses).append('\n');
+        for (final String host : hosts) {
+            sb.append("\n[Peer]\nPublicKey = ").append(PEER_KEY).append('\n')
+                    .append("Endpoint = ").append(host).append(":51820\n");
+        }
+        return Config.from(new StringReader(sb.toString()));
+    }
+
+    private int getLookupCount(final String host) {
+        final AtomicInteger count = lookupCounts.get(host);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * @return A resolver where every name has one IPv6 and one IPv4 address, in that order.
+     */
+    private EndpointResolver newResolver() {
+        return new EndpointResolver(host -> {
+            lookupCounts.putIfAbsent(host, new AtomicInteger());
+            lookupCounts.get(host).incrementAndGet();
+            return new InetAddress[]{
+                    address(host, 0x20, 0x01, 0x0d, 0xb8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1),
+                    address(host, 192, 0, 2, 1),
+            };
+        }, clock::get);
+    }
+
+    @Test
+    public void cachesUntilExpiry() throws Exception {
+        final EndpointResolver resolver = newResolver();
+        final Config config = config("10.0.0.2/32", "a.example", "b.example", "a.example");
+        resolver.resolve(config);
+        assertEquals(1, getLookupCount("a.example"));
+        assertEquals(1, getLookupCount("b.example"));
+
+        clock.addAndGet(EndpointResolver.CACHE_TTL);
+        assertEquals(2, resolver.resolve(config).size());
+        assertEquals(1, getLookupCount("a.example"));
+
+        clock.incrementAndGet();
+        resolver.resolve(config);
+        assertEquals(2, getLookupCount("a.example"));
+        assertEquals(2, getLookupCount("b.example"));
+    }
+
+    @Test
+    public void failureAbortsWithoutWaiting() throws Exception {
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final EndpointResolver resolver = new EndpointResolver(host -> {
+            if (host.equals("bad.example"))
+                throw new UnknownHostException(host);
+            try {
+                Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+            } catch (final InterruptedException e) {
+                interrupted.countDown();
+            }
+            throw new UnknownHostException(host);
+        }, clock::get);
+        final long start = System.nanoTime();
+        try {
+            resolver.resolve(config("", "slow.example", "bad.example"));
+            fail("Resolved a name that does not exist");
+        } catch (final UnknownHostException e) {
+            assertEquals("bad.example", e.getMessage());
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertTrue("The slow lookup was not cancelled", interrupted.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void invalidateForgetsResults() throws Exception {
+        final EndpointResolver resolver = newResolver();
+        final Config config = config("10.0.0.2/32", "a.example");
+        resolver.resolve(config);
+        resolver.invalidate();
+        resolver.resolve(config);
+        assertEquals(2, getLookupCount("a.example"));
+    }
+
+    @Test
+    public void prefersFamilyOfInterface() throws Exception {
+        final EndpointResolver resolver = newResolver();
+        assertTrue(resolver.resolve(config("fd00::2/128", "a.example"))
+                .get("a.example") instanceof Inet6Address);
+        assertTrue(resolver.resolve(config("10.0.0.2/32, fd00::2/128", "a.example"))
+                .get("a.example") instanceof Inet4Address);
+        assertTrue(resolver.resolve(config("", "a.example"))
+                .get("a.example") instanceof Inet4Address);
+        // Both families are cached, so switching between them costs no lookups.
+        assertEquals(1, getLookupCount("a.example"));
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: GPL-2.0-or-later
+ */
+
+package com.wireguard.config;
+
+import com.wireguard.crypto.KeyEncoding;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks {@link AllowedIPsIndex} against a reference that scans every block of every peer, while
+ * peers are added, re-added, and removed in random order. As in {@link IPCidrSetTest}, the blocks
+ * are drawn from one small block per family, so that they overlap often.
+ */
+
+public class AllowedIPsIndexTest {
+    private static final int HOST_BITS = 12;
+    private static final int MAX_BLOCKS = 4;
+    private static final int OPERATIONS = 12;
+    private static final int PEERS = 6;
+    private static final int ROUNDS = 300;
+    private static final int SAMPLES = 64;
+    private static final int SIZE = 1 << HOST_BITS;
+
+    private static String address(final boolean ipv6, final int offset) {
+        if (ipv6)
+            return "2001:db8::" + (offset != 0 ? Integer.toHexString(offset) : "");
+        return "10.0." + (offset >>> 8) + '.' + (offset & 0xFF);
+    }
+
+    private static int indexOf(final List<Peer> peers, final Peer peer) {
+        for (int i = 0; i < peers.size(); ++i) {
+            if (peers.get(i) == peer)
+                return i;
+        }
+        throw new AssertionError("Unknown peer " + peer);
+    }
+
+    private static List<String> overlaps(final AllowedIPsIndex index, final List<Peer> peers) {
+        final List<String> overlaps = new ArrayList<>();
+        for (final AllowedIPsIndex.Overlap overlap : index.getOverlaps())
+            overlaps.add(overlap.getShadowedCidr() + "#" +
+                    indexOf(peers, overlap.getShadowedPeer()) + ' ' + overlap.getWinningCidr() +
+                    '#' + indexOf(peers, overlap.getWinningPeer()));
+        Collections.sort(overlaps);
+        return overlaps;
+    }
+
+    private static List<List<Block>> randomBlocks(final Random random) {
+        final List<List<Block>> blocks = new ArrayList<>();
+        for (int peer = 0; peer < PEERS; ++peer) {
+            final List<Block> peerBlocks = new ArrayList<>();
+            for (int i = random.nextInt(MAX_BLOCKS + 1); i > 0; --i)
+                peerBlocks.add(new Block(random.nextBoolean(), random.nextInt(SIZE),
+                        random.nextInt(HOST_BITS + 1)));
+            blocks.add(peerBlocks);
+        }
+        return blocks;
+    }
+
+    private static Config toConfig(final Random random, final List<List<Block>> blocks)
+            throws IOException {
+        final StringBuilder sb = new StringBuilder("[Interface]\n");
+        for (final List<Block> peerBlocks : blocks) {
+            final byte[] key = new byte[KeyEncoding.KEY_LENGTH];
+            random.nextBytes(key);
+            sb.append("\n[Peer]\nPublicKey = ").append(KeyEncoding.keyToBase64(key)).append('\n');
+            if (peerBlocks.isEmpty())
+                continue;
+            sb.append("AllowedIPs = ");
+            for (int i = 0; i < peerBlocks.size(); ++i)
+                sb.append(i > 0 ? ", " : "").append(peerBlocks.get(i).text);
+            sb.append('\n');
+        }
+        return Config.from(new StringReader(sb.toString()));
+    }
+
+    /**
+     * @return The peer that owns the most specific block containing the address, preferring the
+     * peer added last among those listing the same block, or -1 if there is none.
+     */
+    private static int referenceLookup(final List<List<Block>> blocks, final List<Integer> order,
+                                       final boolean ipv6, final int offset) {
+        int best = -1;
+        int bestHostBits = HOST_BITS + 1;
+        for (final int peer : order) {
+            for (final Block block : blocks.get(peer)) {
+                if (block.contains(ipv6, offset) && block.hostBits <= bestHostBits) {
+                    best = peer;
+                    bestHostBits = block.hostBits;
+                }
+            }
+        }
+        return best;
+    }
+
+    private static List<String> referenceOverlaps(final List<List<Block>> blocks,
+                                                  final List<Integer> order) {
+        // Every block in the index, with the peers listing it in the order they were added.
+        final Map<Block, List<Integer>> owners = new LinkedHashMap<>();
+        for (final int peer : order) {
+            for (final Block block : blocks.get(peer)) {
+                List<Integer> blockOwners = owners.get(block);
+                if (blockOwners == null) {
+                    blockOwners = new ArrayList<>();
+                    owners.put(block, blockOwners);
+                }
+                if (!blockOwners.contains(peer))
+                    blockOwners.add(peer);
+            }
+        }
+        final List<String> overlaps = new ArrayList<>();
+        for (final Map.Entry<Block, List<Integer>> entry : owners.entrySet()) {
+            final Block block = entry.getKey();
+            final List<Integer> blockOwners = entry.getValue();
+            final int winner = blockOwners.get(blockOwners.size() - 1);
+            for (final int owner : blockOwners.subList(0, blockOwners.size() - 1))
+                overlaps.add(block.network + "#" + owner + ' ' + block.network + '#' + winner);
+            Block covering = null;
+            for (final Block other : owners.keySet()) {
+                if (other.hostBits > block.hostBits &&
+                        other.contains(block.ipv6, block.start) &&
+                        (covering == null || other.hostBits < covering.hostBits))
+                    covering = other;
+            }
+            if (covering == null)
+                continue;
+            final List<Integer> coveringOwners = owners.get(covering);
+            final int coveringWinner = coveringOwners.get(coveringOwners.size() - 1);
+            if (coveringWinner != winner)
+                overlaps.add(covering.network + "#" + coveringWinner + ' ' + block.network + '#' +
+                        winner);
+        }
+        Collections.sort(overlaps);
+        return overlaps;
+    }
+
+    private static void check(final Random random, final AllowedIPsIndex index,
+                              final List<Peer> peers, final List<List<Block>> blocks,
+                              final List<Integer> order) {
+        for (int i = 0; i < SAMPLES; ++i) {
+            final boolean ipv6 = random.nextBoolean();
+            final int offset = random.nextInt(SIZE);
+            final int expected = referenceLookup(blocks, order, ipv6, offset);
+            final Peer peer = index.lookup(address(ipv6, offset));
+            assertEquals(address(ipv6, offset) + " in " + blocks + " added " + order,
+                    expected, peer == null ? -1 : indexOf(peers, peer));
+        }
+        assertEquals(blocks + " added " + order, referenceOverlaps(blocks, order),
+                overlaps(index, peers));
+    }
+
+    @Test
+    public void constructorAddsPeersInOrder() throws IOException {
+        final Random random = new Random(2);
+        final List<Integer> order = new ArrayList<>();
+        for (int peer = 0; peer < PEERS; ++peer)
+            order.add(peer);
+        for (int round = 0; round < ROUNDS; ++round) {
+            final List<List<Block>> blocks = randomBlocks(random);
+            final Config config = toConfig(random, blocks);
+            check(random, new AllowedIPsIndex(config), config.getPeers(), blocks, order);
+        }
+    }
+
+    @Test
+    public void matchesReference() throws IOException {
+        final Random random = new Random(1);
+        for (int round = 0; round < ROUNDS; ++round) {
+            final List<List<Block>> blocks = randomBlocks(random);
+            final List<Peer> peers = toConfig(random, blocks).getPeers();
+            final AllowedIPsIndex index = new AllowedIPsIndex();
+            final List<Integer> order = new ArrayList<>();
+            for (int operation = 0; operation < OPERATIONS; ++operation) {
+                final int peer = random.nextInt(PEERS);
+                order.remove(Integer.valueOf(peer));
+                if (random.nextInt(3) == 0) {
+                    index.remove(peers.get(peer));
+                } else {
+                    index.add(peers.get(peer));
+                    order.add(peer);
+                }
+                check(random, index, peers, blocks, order);
+            }
+        }
+    }
+
+    /**
+     * A block of the test range, which may be written with host bits set.
+     */
+    private static final class Block {
+        private final int hostBits;
+        private final boolean ipv6;
+        private final String network;
+        private final int start;
+        private final String text;
+
+        private Block(final boolean ipv6, final int offset, final int hostBits) {
+            final int prefix = (ipv6 ? 128 : 32) - hostBits;
+            this.ipv6 = ipv6;
+            this.hostBits = hostBits;
+            start = offset & -(1 << hostBits);
+            network = address(ipv6, start) + '/' + prefix;
+            text = address(ipv6, offset) + '/' + prefix;
+        }
+
+        private boolean contains(final boolean ipv6, final int offset) {
+            return this.ipv6 == ipv6 && (offset & -(1 << hostBits)) == start;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            return obj instanceof Block && network.equals(((Block) obj).network);
+        }
+
+        @Override
+        public int hashCode() {
+            return network.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+}
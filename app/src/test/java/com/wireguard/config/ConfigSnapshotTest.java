@@ -0,0 +1,168 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: GPL-2.0-or-later
+ */
+
+package com.wireguard.config;
+
+import com.wireguard.crypto.KeyEncoding;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a {@link ConfigSnapshot} reads back exactly the configuration it was written from,
+ * and that a truncated or damaged snapshot is reported with an {@link IOException} rather than
+ * any other exception, so the configuration store can fall back to the text.
+ */
+
+public class ConfigSnapshotTest {
+    private static final int CORRUPTIONS = 200;
+    private static final int MAX_PEERS = 5;
+    private static final int ROUNDS = 200;
+
+    private static void appendCidrs(final Random random, final StringBuilder sb,
+                                    final String name) {
+        final int count = random.nextInt(4);
+        if (count == 0)
+            return;
+        sb.append(name).append(" = ");
+        for (int i = 0; i < count; ++i) {
+            if (i > 0)
+                sb.append(", ");
+            if (random.nextBoolean()) {
+                sb.append(random.nextInt(256)).append('.').append(random.nextInt(256)).append('.')
+                        .append(random.nextInt(256)).append('.').append(random.nextInt(256))
+                        .append('/').append(random.nextInt(33));
+            } else {
+                sb.append("fd00:").append(Integer.toHexString(random.nextInt(0x10000)))
+                        .append("::").append(Integer.toHexString(random.nextInt(0x10000)))
+                        .append('/').append(random.nextInt(129));
+            }
+        }
+        sb.append('\n');
+    }
+
+    private static Config randomConfig(final Random random) throws IOException {
+        final StringBuilder sb = new StringBuilder("[Interface]\n");
+        if (random.nextBoolean())
+            sb.append("PrivateKey = ").append(randomKey(random)).append('\n');
+        appendCidrs(random, sb, "Address");
+        if (random.nextBoolean())
+            sb.append("DNS = 10.0.0.53, fd00::53\n");
+        if (random.nextBoolean())
+            sb.append("ListenPort = ").append(random.nextInt(65536)).append('\n');
+        if (random.nextBoolean())
+            sb.append("MTU = ").append(1280 + random.nextInt(200)).append('\n');
+        for (int i = random.nextInt(MAX_PEERS + 1); i > 0; --i) {
+            sb.append("\n[Peer]\nPublicKey = ").append(randomKey(random)).append('\n');
+            if (random.nextBoolean())
+                sb.append("PresharedKey = ").append(randomKey(random)).append('\n');
+            switch (random.nextInt(4)) {
+                case 1:
+                    sb.append("Endpoint = 192.0.2.1:").append(random.nextInt(65536)).append('\n');
+                    break;
+                case 2:
+                    sb.append("Endpoint = [2001:db8::1]:51820\n");
+                    break;
+                case 3:
+                    sb.append("Endpoint = peer").append(i).append(".example.com:51820\n");
+                    break;
+                default:
+                    break;
+            }
+            if (random.nextBoolean())
+                sb.append("PersistentKeepalive = ").append(random.nextInt(65536)).append('\n');
+            appendCidrs(random, sb, "AllowedIPs");
+            appendCidrs(random, sb, "DisallowedIPs");
+        }
+        return Config.from(new StringReader(sb.toString()));
+    }
+
+    private static String randomKey(final Random random) {
+        final byte[] key = new byte[KeyEncoding.KEY_LENGTH];
+        random.nextBytes(key);
+        return KeyEncoding.keyToBase64(key);
+    }
+
+    private static Config read(final byte[] snapshot) throws IOException {
+        return ConfigSnapshot.read(new DataInputStream(new ByteArrayInputStream(snapshot)));
+    }
+
+    private static byte[] write(final Config config) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        ConfigSnapshot.write(config, out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void corruptSnapshotThrowsIOException() throws IOException {
+        final Random random = new Random(2);
+        for (int round = 0; round < CORRUPTIONS; ++round) {
+            final byte[] snapshot = write(randomConfig(random));
+            for (int i = 1 + random.nextInt(3); i > 0; --i)
+                snapshot[random.nextInt(snapshot.length)] ^= 1 << random.nextInt(8);
+            try {
+                read(snapshot);
+            } catch (final IOException ignored) {
+                // Expected unless only the contents of a field were changed.
+            }
+        }
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        final Random random = new Random(1);
+        for (int round = 0; round < ROUNDS; ++round) {
+            final Config config = randomConfig(random);
+            final Config copy = read(write(config));
+            assertEquals(config.toString(), config, copy);
+            assertEquals(config.toString(), copy.toString());
+        }
+    }
+
+    @Test
+    public void truncatedSnapshotThrowsIOException() throws IOException {
+        final Random random = new Random(3);
+        for (int round = 0; round < ROUNDS / 10; ++round) {
+            final byte[] snapshot = write(randomConfig(random));
+            for (int length = 0; length < snapshot.length; ++length) {
+                try {
+                    read(Arrays.copyOf(snapshot, length));
+                    fail("Read a snapshot truncated to " + length + " of " + snapshot.length);
+                } catch (final IOException ignored) {
+                    // Expected.
+                }
+            }
+        }
+    }
+
+    @Test
+    public void wrongHeaderThrowsIOException() throws IOException {
+        final byte[] snapshot = write(randomConfig(new Random(4)));
+        // The magic number, then the version.
+        for (final int offset : new int[]{0, 7}) {
+            final byte[] corrupt = snapshot.clone();
+            corrupt[offset] ^= 1;
+            try {
+                read(corrupt);
+                fail("Read a snapshot with byte " + offset + " of the header changed");
+            } catch (final IOException ignored) {
+                // Expected.
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: GPL-2.0-or-later
+ */
+
+package com.wireguard.config;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks {@link IPCidrSet} against a reference that enumerates every address. The random blocks
+ * are drawn from one small block per family, so that enumerating them stays cheap.
+ */
+
+public class IPCidrSetTest {
+    private static final int HOST_BITS = 12;
+    private static final long IPV4_BASE = 0x0A000000L; // 10.0.0.0/20
+    private static final long IPV6_BASE = 0x20010DB800000000L; // 2001:db8::/116
+    private static final int MAX_BLOCKS = 8;
+    private static final int ROUNDS = 1000;
+    private static final int SIZE = 1 << HOST_BITS;
+
+    private static BitSet addresses(final List<IPCidr> blocks, final boolean ipv6) {
+        final BitSet addresses = new BitSet(SIZE);
+        for (final IPCidr block : blocks) {
+            if (block.isIpv6() != ipv6)
+                continue;
+            final int hostBits = (ipv6 ? 128 : 32) - block.getCidr();
+            final int start = (int) block.getLowBits() & (SIZE - 1) & -(1 << hostBits);
+            addresses.set(start, start + (1 << hostBits));
+        }
+        return addresses;
+    }
+
+    private static IPCidr block(final boolean ipv6, final int offset, final int hostBits) {
+        return new IPCidr(ipv6, ipv6 ? IPV6_BASE : 0, (ipv6 ? 0 : IPV4_BASE) + offset,
+                (ipv6 ? 128 : 32) - hostBits);
+    }
+
+    /**
+     * @return The largest aligned blocks that together cover exactly the given addresses, in
+     * order. This is the unique smallest list of blocks for them.
+     */
+    private static List<IPCidr> minimalCover(final BitSet addresses, final boolean ipv6) {
+        final List<IPCidr> cover = new ArrayList<>();
+        int address = addresses.nextSetBit(0);
+        while (address != -1) {
+            int hostBits = Integer.numberOfTrailingZeros(address | SIZE);
+            while (addresses.nextClearBit(address) < address + (1 << hostBits))
+                --hostBits;
+            cover.add(block(ipv6, address, hostBits));
+            address = addresses.nextSetBit(address + (1 << hostBits));
+        }
+        return cover;
+    }
+
+    /**
+     * @return Blocks of both families in random order, some of them with host bits set.
+     */
+    private static List<IPCidr> randomBlocks(final Random random) {
+        final List<IPCidr> blocks = new ArrayList<>();
+        for (int i = random.nextInt(MAX_BLOCKS + 1); i > 0; --i)
+            blocks.add(block(random.nextBoolean(), random.nextInt(SIZE),
+                    random.nextInt(HOST_BITS + 1)));
+        Collections.shuffle(blocks, random);
+        return blocks;
+    }
+
+    private static List<IPCidr> reference(final BitSet ipv4, final BitSet ipv6) {
+        final List<IPCidr> result = minimalCover(ipv4, false);
+        result.addAll(minimalCover(ipv6, true));
+        return result;
+    }
+
+    @Test
+    public void aggregateMatchesEnumeration() {
+        final Random random = new Random(1);
+        for (int round = 0; round < ROUNDS; ++round) {
+            final List<IPCidr> blocks = randomBlocks(random);
+            assertEquals(blocks.toString(),
+                    reference(addresses(blocks, false), addresses(blocks, true)),
+                    IPCidrSet.aggregate(blocks));
+        }
+    }
+
+    @Test
+    public void subtractMatchesEnumeration() {
+        final Random random = new Random(2);
+        for (int round = 0; round < ROUNDS; ++round) {
+            final List<IPCidr> included = randomBlocks(random);
+            final List<IPCidr> excluded = randomBlocks(random);
+            final BitSet ipv4 = addresses(included, false);
+            ipv4.andNot(addresses(excluded, false));
+            final BitSet ipv6 = addresses(included, true);
+            ipv6.andNot(addresses(excluded, true));
+            assertEquals(included + " - " + excluded, reference(ipv4, ipv6),
+                    IPCidrSet.subtract(included, excluded));
+        }
+    }
+}
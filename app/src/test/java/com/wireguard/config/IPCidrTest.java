@@ -0,0 +1,169 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: GPL-2.0-or-later
+ */
+
+package com.wireguard.config;
+
+import org.junit.Test;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the hand-written parser and formatter of {@link IPCidr} against {@link InetAddress} and
+ * a plain implementation of the canonical form of RFC 5952, on random addresses written in all
+ * the ways a configuration file may contain them.
+ */
+
+public class IPCidrTest {
+    private static final int ROUNDS = 10000;
+
+    private static String canonical(final int[] groups) {
+        int bestStart = -1;
+        int bestLength = 1;
+        for (int start = 0; start < groups.length; ++start) {
+            int end = start;
+            while (end < groups.length && groups[end] == 0)
+                ++end;
+            if (end - start > bestLength) {
+                bestStart = start;
+                bestLength = end - start;
+            }
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < groups.length; ++i) {
+            if (i == bestStart) {
+                sb.append("::");
+                i += bestLength - 1;
+            } else {
+                if (sb.length() > 0 && sb.charAt(sb.length() - 1) != ':')
+                    sb.append(':');
+                sb.append(Integer.toHexString(groups[i]));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return Groups of an IPv6 address, with runs of zeros common enough to test compression.
+     */
+    private static int[] randomGroups(final Random random) {
+        final int[] groups = new int[8];
+        for (int i = 0; i < groups.length; ++i) {
+            if (random.nextBoolean())
+                groups[i] = random.nextInt(4) == 0 ? random.nextInt(16) : random.nextInt(0x10000);
+        }
+        return groups;
+    }
+
+    /**
+     * @return The address written in one of the forms a person might use: compressed or not,
+     * with leading zeros, in upper case, or with the last 32 bits as an IPv4 address.
+     */
+    private static String randomText(final Random random, final int[] groups) {
+        final int form = random.nextInt(4);
+        if (form == 0)
+            return canonical(groups);
+        final StringBuilder sb = new StringBuilder();
+        final int hexGroups = form == 3 ? 6 : 8;
+        for (int i = 0; i < hexGroups; ++i) {
+            if (i > 0)
+                sb.append(':');
+            sb.append(form == 1 ? String.format(Locale.ROOT, "%04x", groups[i])
+                    : Integer.toHexString(groups[i]).toUpperCase(Locale.ROOT));
+        }
+        if (form == 3) {
+            sb.append(':').append(groups[6] >>> 8).append('.').append(groups[6] & 0xFF)
+                    .append('.').append(groups[7] >>> 8).append('.').append(groups[7] & 0xFF);
+        }
+        return sb.toString();
+    }
+
+    private static void assertInvalid(final String text) {
+        try {
+            new IPCidr(text);
+            fail("Parsed invalid address " + text);
+        } catch (final IllegalArgumentException ignored) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void ipv4MatchesInetAddress() throws Exception {
+        final Random random = new Random(1);
+        for (int round = 0; round < ROUNDS; ++round) {
+            final int[] octets = new int[4];
+            for (int i = 0; i < octets.length; ++i)
+                octets[i] = random.nextInt(256);
+            final String address = octets[0] + "." + octets[1] + '.' + octets[2] + '.' + octets[3];
+            final int cidr = random.nextInt(33);
+            final IPCidr parsed = new IPCidr(address + '/' + cidr);
+            assertFalse(parsed.isIpv6());
+            assertEquals(address + '/' + cidr, parsed.toString());
+            assertEquals(address, InetAddress.getByName(address), parsed.getAddress());
+        }
+    }
+
+    @Test
+    public void ipv6MatchesInetAddress() throws Exception {
+        final Random random = new Random(2);
+        for (int round = 0; round < ROUNDS; ++round) {
+            final int[] groups = randomGroups(random);
+            final String text = randomText(random, groups);
+            final InetAddress expected = InetAddress.getByName(text);
+            final IPCidr parsed = new IPCidr(text);
+            assertEquals(text, expected, parsed.getAddress());
+            if (expected instanceof Inet4Address)
+                continue;
+            final int cidr = random.nextInt(129);
+            final IPCidr withPrefix = new IPCidr(text + '/' + cidr);
+            assertEquals(text, canonical(groups) + '/' + cidr, withPrefix.toString());
+            assertEquals(text, withPrefix, new IPCidr(withPrefix.toString()));
+        }
+    }
+
+    @Test
+    public void ipv4MappedIsIpv4() throws Exception {
+        final IPCidr host = new IPCidr("::ffff:1.2.3.4");
+        assertFalse(host.isIpv6());
+        assertEquals("1.2.3.4/32", host.toString());
+        assertEquals(InetAddress.getByName("1.2.3.4"), host.getAddress());
+        assertEquals("1.2.3.0/24", new IPCidr("::FFFF:102:300/120").toString());
+        assertEquals(InetAddress.getByName("1.2.3.4"), IPCidr.parseAddress("::ffff:1.2.3.4"));
+
+        // A prefix shorter than the mapping covers more than IPv4, so it stays IPv6.
+        final IPCidr block = new IPCidr("::ffff:0.0.0.0/80");
+        assertTrue(block.isIpv6());
+        assertEquals("::ffff:0:0/80", block.toString());
+        assertTrue(block.getAddress() instanceof Inet6Address);
+    }
+
+    @Test
+    public void prefixDefaultsToFullLength() {
+        assertEquals("10.0.0.1/32", new IPCidr("10.0.0.1").toString());
+        assertEquals("10.0.0.1/32", new IPCidr("10.0.0.1/33").toString());
+        assertEquals("::1/128", new IPCidr("::1").toString());
+        assertEquals("::1/128", new IPCidr("::1/129").toString());
+        assertEquals("::/0", new IPCidr("::/0").toString());
+    }
+
+    @Test
+    public void rejectsInvalidAddresses() {
+        final String[] invalid = {
+                "", "/24", "1.2.3", "1.2.3.4.5", "1.2.3.256", "1.2.3.4x", "1..2.3", "1.2.3.4.",
+                ":", ":::", "1::2::3", "1:2:3:4:5:6:7:8:9", "1:2:3:4:5:6:7", "12345::",
+                "1:2:3:4:5:6:7:8::", "::g", "1:", ":1", "::1.2.3", "1:2:3:4:5:6:7:1.2.3.4",
+        };
+        for (final String text : invalid)
+            assertInvalid(text);
+    }
+}
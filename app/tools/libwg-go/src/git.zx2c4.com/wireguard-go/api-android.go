@@ -0,0 +1,270 @@
+/* SPDX-License-Identifier: GPL-2.0-or-later
+ *
+ * Copyright (C) 2017-2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ */
+
+package main
+
+// #cgo LDFLAGS: -llog
+// #include <android/log.h>
+import "C"
+
+import (
+	"bufio"
+	"bytes"
+	"git.zx2c4.com/wireguard-go/tun"
+	"golang.org/x/sys/unix"
+	"io/ioutil"
+	"log"
+	"math"
+	"os"
+	"os/signal"
+	"runtime"
+	"strings"
+	"unsafe"
+)
+
+type AndroidLogger struct {
+	level         C.int
+	interfaceName string
+}
+
+func (l AndroidLogger) Write(p []byte) (int, error) {
+	C.__android_log_write(l.level, C.CString("WireGuard/GoBackend/"+l.interfaceName), C.CString(string(p)))
+	return len(p), nil
+}
+
+var tunnelHandles map[int32]*Device
+
+func init() {
+	roamingDisabled = true
+	tunnelHandles = make(map[int32]*Device)
+	signals := make(chan os.Signal)
+	signal.Notify(signals, unix.SIGUSR2)
+	go func() {
+		buf := make([]byte, os.Getpagesize())
+		for {
+			select {
+			case <-signals:
+				n := runtime.Stack(buf, true)
+				buf[n] = 0
+				C.__android_log_write(C.ANDROID_LOG_ERROR, C.CString("WireGuard/GoBackend/Stacktrace"), (*_Ctype_char)(unsafe.Pointer(&buf[0])))
+			}
+		}
+	}()
+}
+
+//export wgTurnOn
+func wgTurnOn(ifnameRef string, tun_fd int32, settings string) int32 {
+	interfaceName := string([]byte(ifnameRef))
+
+	logger := &Logger{
+		Debug: log.New(&AndroidLogger{level: C.ANDROID_LOG_DEBUG, interfaceName: interfaceName}, "", 0),
+		Info:  log.New(&AndroidLogger{level: C.ANDROID_LOG_INFO, interfaceName: interfaceName}, "", 0),
+		Error: log.New(&AndroidLogger{level: C.ANDROID_LOG_ERROR, interfaceName: interfaceName}, "", 0),
+	}
+
+	logger.Debug.Println("Debug log enabled")
+
+	tun, name, err := tun.CreateTUNFromFD(int(tun_fd))
+	if err != nil {
+		unix.Close(int(tun_fd))
+		logger.Error.Println(err)
+		return -1
+	}
+
+	logger.Info.Println("Attaching to interface", name)
+	device := NewDevice(tun, logger)
+
+	logger.Debug.Println("Interface has MTU", device.tun.mtu)
+
+	bufferedSettings := bufio.NewReadWriter(bufio.NewReader(strings.NewReader(settings)), bufio.NewWriter(ioutil.Discard))
+	setError := ipcSetOperation(device, bufferedSettings)
+	if setError != nil {
+		unix.Close(int(tun_fd))
+		logger.Error.Println(setError)
+		return -1
+	}
+
+	device.Up()
+	logger.Info.Println("Device started")
+
+	var i int32
+	for i = 0; i < math.MaxInt32; i++ {
+		if _, exists := tunnelHandles[i]; !exists {
+			break
+		}
+	}
+	if i == math.MaxInt32 {
+		unix.Close(int(tun_fd))
+		return -1
+	}
+	tunnelHandles[i] = device
+	return i
+}
+
+//export wgMuxSetTun
+func wgMuxSetTun(tun_fd int32) int32 {
+	if tun_fd < 0 {
+		mux.setPhysical(nil)
+		return 0
+	}
+	physical, _, err := tun.CreateTUNFromFD(int(tun_fd))
+	if err != nil {
+		unix.Close(int(tun_fd))
+		return -1
+	}
+	mux.setPhysical(physical)
+	return 0
+}
+
+//export wgMuxTurnOn
+func wgMuxTurnOn(ifnameRef string, mtu int32, settings string) int32 {
+	interfaceName := string([]byte(ifnameRef))
+
+	logger := &Logger{
+		Debug: log.New(&AndroidLogger{level: C.ANDROID_LOG_DEBUG, interfaceName: interfaceName}, "", 0),
+		Info:  log.New(&AndroidLogger{level: C.ANDROID_LOG_INFO, interfaceName: interfaceName}, "", 0),
+		Error: log.New(&AndroidLogger{level: C.ANDROID_LOG_ERROR, interfaceName: interfaceName}, "", 0),
+	}
+
+	virtual := newVirtualTun(interfaceName, int(mtu))
+	device := NewDevice(virtual, logger)
+
+	bufferedSettings := bufio.NewReadWriter(bufio.NewReader(strings.NewReader(settings)), bufio.NewWriter(ioutil.Discard))
+	setError := ipcSetOperation(device, bufferedSettings)
+	if setError != nil {
+		logger.Error.Println(setError)
+		device.Close()
+		return -1
+	}
+
+	var i int32
+	for i = 0; i < math.MaxInt32; i++ {
+		if _, exists := tunnelHandles[i]; !exists {
+			break
+		}
+	}
+	if i == math.MaxInt32 {
+		device.Close()
+		return -1
+	}
+
+	device.Up()
+	mux.add(virtual, device)
+	logger.Info.Println("Device started on shared interface")
+
+	tunnelHandles[i] = device
+	return i
+}
+
+//export wgMuxSetMtu
+func wgMuxSetMtu(tunnelHandle int32, mtu int32) int32 {
+	device, ok := tunnelHandles[tunnelHandle]
+	if !ok {
+		return -1
+	}
+	virtual, ok := device.tun.device.(*virtualTun)
+	if !ok {
+		return -1
+	}
+	virtual.setMTU(int(mtu))
+	return 0
+}
+
+//export wgTurnOff
+func wgTurnOff(tunnelHandle int32) {
+	device, ok := tunnelHandles[tunnelHandle]
+	if !ok {
+		return
+	}
+	delete(tunnelHandles, tunnelHandle)
+	device.Close()
+}
+
+//export wgSetConfig
+func wgSetConfig(tunnelHandle int32, settings string) int32 {
+	device, ok := tunnelHandles[tunnelHandle]
+	if !ok {
+		return -1
+	}
+	bufferedSettings := bufio.NewReadWriter(bufio.NewReader(strings.NewReader(settings)), bufio.NewWriter(ioutil.Discard))
+	setError := ipcSetOperation(device, bufferedSettings)
+	if setError != nil {
+		device.log.Error.Println(setError)
+		return -1
+	}
+	return 0
+}
+
+//export wgGetConfig
+func wgGetConfig(tunnelHandle int32) *C.char {
+	device, ok := tunnelHandles[tunnelHandle]
+	if !ok {
+		return nil
+	}
+	settings := new(bytes.Buffer)
+	writer := bufio.NewWriter(settings)
+	getError := ipcGetOperation(device, bufio.NewReadWriter(bufio.NewReader(strings.NewReader("")), writer))
+	if getError != nil {
+		device.log.Error.Println(getError)
+		return nil
+	}
+	writer.Flush()
+	return C.CString(settings.String())
+}
+
+//export wgGetSocketV4
+func wgGetSocketV4(tunnelHandle int32) int32 {
+	device, ok := tunnelHandles[tunnelHandle]
+	if !ok {
+		return -1
+	}
+	native, ok := device.net.bind.(*NativeBind)
+	if !ok {
+		return -1
+	}
+	fd := int32(-1)
+	conn, err := native.ipv4.SyscallConn()
+	if err != nil {
+		return -1
+	}
+	err = conn.Control(func(f uintptr) {
+		fd = int32(f)
+	})
+	if err != nil {
+		return -1
+	}
+	return fd
+}
+
+//export wgGetSocketV6
+func wgGetSocketV6(tunnelHandle int32) int32 {
+	device, ok := tunnelHandles[tunnelHandle]
+	if !ok {
+		return -1
+	}
+	native, ok := device.net.bind.(*NativeBind)
+	if !ok {
+		return -1
+	}
+	fd := int32(-1)
+	conn, err := native.ipv6.SyscallConn()
+	if err != nil {
+		return -1
+	}
+	err = conn.Control(func(f uintptr) {
+		fd = int32(f)
+	})
+	if err != nil {
+		return -1
+	}
+	return fd
+}
+
+//export wgVersion
+func wgVersion() *C.char {
+	return C.CString(WireGuardGoVersion)
+}
+
+func main() {}
@@ -0,0 +1,258 @@
+/* SPDX-License-Identifier: GPL-2.0-or-later
+ *
+ * Copyright (C) 2017-2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ */
+
+package main
+
+import (
+	"errors"
+	"git.zx2c4.com/wireguard-go/tun"
+	"net"
+	"os"
+	"sync"
+)
+
+/* Android only allows one VPN interface at a time, so several devices
+ * share it: packets read from the interface are handed to the device
+ * with the most specific allowed IP containing their destination, and
+ * packets written by any device go straight back out. The interface
+ * itself can be swapped for a new one when the set of addresses or
+ * routes changes.
+ */
+
+type muxTun struct {
+	mutex        sync.RWMutex
+	physical     tun.TUNDevice
+	physicalDone chan struct{}
+	virtuals     []*virtualTun
+	buffers      sync.Pool
+}
+
+type virtualTun struct {
+	mux     *muxTun
+	device  *Device
+	name    string
+	mtu     int
+	packets chan []byte
+	events  chan tun.TUNEvent
+	closed  chan struct{}
+	once    sync.Once
+}
+
+var errMuxClosed = errors.New("virtual tun closed")
+
+var mux = &muxTun{
+	buffers: sync.Pool{
+		New: func() interface{} {
+			return make([]byte, MaxMessageSize)
+		},
+	},
+}
+
+func (mux *muxTun) setPhysical(physical tun.TUNDevice) {
+	var done chan struct{}
+	if physical != nil {
+		done = make(chan struct{})
+	}
+	mux.mutex.Lock()
+	old := mux.physical
+	oldDone := mux.physicalDone
+	mux.physical = physical
+	mux.physicalDone = done
+	mux.mutex.Unlock()
+	if old != nil {
+		close(oldDone)
+		old.Close()
+	}
+	if physical != nil {
+		go mux.routineReadFromPhysical(physical)
+		go routineDiscardEvents(physical, done)
+	}
+}
+
+/* The devices get their MTU from their own virtual interfaces, so
+ * events from the shared one are of no use, but they must still be
+ * read so that whoever sends them never blocks.
+ */
+func routineDiscardEvents(physical tun.TUNDevice, done chan struct{}) {
+	events := physical.Events()
+	for {
+		select {
+		case _, ok := <-events:
+			if !ok {
+				return
+			}
+		case <-done:
+			return
+		}
+	}
+}
+
+func (mux *muxTun) routineReadFromPhysical(physical tun.TUNDevice) {
+	for {
+		buffer := mux.buffers.Get().([]byte)
+		size, err := physical.Read(buffer, 0)
+		if err != nil {
+			mux.buffers.Put(buffer)
+			return
+		}
+		virtual := mux.route(buffer[:size])
+		if virtual == nil {
+			mux.buffers.Put(buffer)
+			continue
+		}
+		select {
+		case virtual.packets <- buffer[:size]:
+		default:
+			/* Drop rather than stall the other devices. */
+			mux.buffers.Put(buffer)
+		}
+	}
+}
+
+func (mux *muxTun) route(packet []byte) *virtualTun {
+	var destination []byte
+	switch {
+	case len(packet) >= 20 && packet[0]>>4 == 4:
+		destination = packet[16:20]
+	case len(packet) >= 40 && packet[0]>>4 == 6:
+		destination = packet[24:40]
+	default:
+		return nil
+	}
+	mux.mutex.RLock()
+	defer mux.mutex.RUnlock()
+	/* Like the kernel, prefer the longest matching prefix across all of
+	 * the devices; among equally specific matches, the device that came
+	 * up first wins.
+	 */
+	var best *virtualTun
+	bestCidr := -1
+	for _, virtual := range mux.virtuals {
+		if cidr := lookupPrefixLength(&virtual.device.allowedips, destination); cidr > bestCidr {
+			best = virtual
+			bestCidr = cidr
+		}
+	}
+	return best
+}
+
+/* Like AllowedIPs.LookupIPv4 and LookupIPv6, but returns the length of
+ * the longest prefix containing the address that has a peer, or -1 if
+ * there is none, so that matches in different devices can be compared.
+ */
+func lookupPrefixLength(table *AllowedIPs, address []byte) int {
+	table.mutex.RLock()
+	defer table.mutex.RUnlock()
+	node := table.IPv4
+	if len(address) == net.IPv6len {
+		node = table.IPv6
+	}
+	cidr := -1
+	size := uint(len(address))
+	for node != nil && commonBits(node.bits, address) >= node.cidr {
+		if node.peer != nil {
+			cidr = int(node.cidr)
+		}
+		if node.bit_at_byte == size {
+			break
+		}
+		node = node.child[node.choose(address)]
+	}
+	return cidr
+}
+
+func (mux *muxTun) write(buffer []byte, offset int) (int, error) {
+	mux.mutex.RLock()
+	defer mux.mutex.RUnlock()
+	if mux.physical == nil {
+		/* Nowhere to deliver it while the interface is being replaced. */
+		return len(buffer) - offset, nil
+	}
+	return mux.physical.Write(buffer, offset)
+}
+
+func (mux *muxTun) add(virtual *virtualTun, device *Device) {
+	mux.mutex.Lock()
+	virtual.device = device
+	mux.virtuals = append(mux.virtuals, virtual)
+	mux.mutex.Unlock()
+}
+
+func (virtual *virtualTun) File() *os.File {
+	return nil
+}
+
+func (virtual *virtualTun) Read(buffer []byte, offset int) (int, error) {
+	select {
+	case packet := <-virtual.packets:
+		size := copy(buffer[offset:], packet)
+		virtual.mux.buffers.Put(packet[:cap(packet)])
+		return size, nil
+	case <-virtual.closed:
+		return 0, errMuxClosed
+	}
+}
+
+func (virtual *virtualTun) Write(buffer []byte, offset int) (int, error) {
+	return virtual.mux.write(buffer, offset)
+}
+
+func (virtual *virtualTun) MTU() (int, error) {
+	virtual.mux.mutex.RLock()
+	defer virtual.mux.mutex.RUnlock()
+	return virtual.mtu, nil
+}
+
+func (virtual *virtualTun) Name() (string, error) {
+	return virtual.name, nil
+}
+
+func (virtual *virtualTun) Events() chan tun.TUNEvent {
+	return virtual.events
+}
+
+func (virtual *virtualTun) Close() error {
+	virtual.once.Do(func() {
+		mux := virtual.mux
+		mux.mutex.Lock()
+		for i, v := range mux.virtuals {
+			if v == virtual {
+				mux.virtuals = append(mux.virtuals[:i], mux.virtuals[i+1:]...)
+				break
+			}
+		}
+		close(virtual.closed)
+		close(virtual.events)
+		mux.mutex.Unlock()
+	})
+	return nil
+}
+
+func (virtual *virtualTun) setMTU(mtu int) {
+	virtual.mux.mutex.Lock()
+	defer virtual.mux.mutex.Unlock()
+	select {
+	case <-virtual.closed:
+		return
+	default:
+	}
+	virtual.mtu = mtu
+	select {
+	case virtual.events <- tun.TUNEventMTUUpdate:
+	default:
+		/* An update is already pending, and it will read the new MTU. */
+	}
+}
+
+func newVirtualTun(name string, mtu int) *virtualTun {
+	return &virtualTun{
+		mux:     mux,
+		name:    name,
+		mtu:     mtu,
+		packets: make(chan []byte, QueueOutboundSize),
+		events:  make(chan tun.TUNEvent, 5),
+		closed:  make(chan struct{}),
+	}
+}
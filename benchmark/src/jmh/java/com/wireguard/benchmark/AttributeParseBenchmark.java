@@ -0,0 +1,61 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: GPL-2.0-or-later
+ */
+
+package com.wireguard.benchmark;
+
+import com.wireguard.config.Interface;
+import com.wireguard.config.Peer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * Benchmarks for the line-at-a-time parsers of the [Interface] and [Peer] sections.
+ */
+
+@State(Scope.Benchmark)
+public class AttributeParseBenchmark {
+    private String[] interfaceLines;
+    private String[] peerLines;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(0);
+        interfaceLines = new String[]{
+                "PrivateKey = " + SyntheticConfigs.randomKey(random),
+                "Address = 10.0.0.1/16, fd00::1/64",
+                "DNS = 10.0.0.53, fd00::53",
+                "ListenPort = 51820",
+                "MTU = 1420",
+        };
+        peerLines = new String[]{
+                "PublicKey = " + SyntheticConfigs.randomKey(random),
+                "PresharedKey = " + SyntheticConfigs.randomKey(random),
+                "AllowedIPs = 10.0.0.2/32, fd00::2/128, 192.168.0.0/24",
+                "Endpoint = 192.0.2.1:51820",
+                "PersistentKeepalive = 25",
+        };
+    }
+
+    @Benchmark
+    public Interface parseInterface() {
+        final Interface iface = new Interface();
+        for (final String line : interfaceLines)
+            iface.parse(line);
+        return iface;
+    }
+
+    @Benchmark
+    public Peer parsePeer() {
+        final Peer peer = new Peer();
+        for (final String line : peerLines)
+            peer.parse(line);
+        return peer;
+    }
+}
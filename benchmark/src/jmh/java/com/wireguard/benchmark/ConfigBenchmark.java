@@ -0,0 +1,47 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: GPL-2.0-or-later
+ */
+
+package com.wireguard.benchmark;
+
+import com.wireguard.config.Config;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Benchmarks for parsing and serializing whole configuration files.
+ */
+
+@State(Scope.Benchmark)
+public class ConfigBenchmark {
+    @Param({"1", "100", "10000"})
+    public int peers;
+
+    private Config config;
+    private byte[] text;
+
+    @Setup
+    public void setup() throws IOException {
+        text = SyntheticConfigs.generate(peers).getBytes(StandardCharsets.UTF_8);
+        config = Config.from(new ByteArrayInputStream(text));
+    }
+
+    @Benchmark
+    public Config parse() throws IOException {
+        return Config.from(new ByteArrayInputStream(text));
+    }
+
+    @Benchmark
+    public String serialize() {
+        return config.toString();
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: GPL-2.0-or-later
+ */
+
+package com.wireguard.benchmark;
+
+import com.wireguard.crypto.Curve25519;
+import com.wireguard.crypto.KeyEncoding;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * Benchmarks for Curve25519 public key derivation and shared secret computation.
+ */
+
+@State(Scope.Thread)
+public class Curve25519Benchmark {
+    private static final int BATCH_SIZE = 1000;
+
+    private final byte[] batchResult = new byte[BATCH_SIZE * KeyEncoding.KEY_LENGTH];
+    private final byte[][] batchPrivateKeys = new byte[BATCH_SIZE][];
+    private final byte[] result = new byte[KeyEncoding.KEY_LENGTH];
+    private byte[] privateKey;
+    private byte[] publicKey;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(0);
+        for (int i = 0; i < BATCH_SIZE; ++i)
+            batchPrivateKeys[i] = SyntheticConfigs.randomKeyBytes(random);
+        privateKey = SyntheticConfigs.randomKeyBytes(random);
+        publicKey = new byte[KeyEncoding.KEY_LENGTH];
+        Curve25519.eval(publicKey, 0, SyntheticConfigs.randomKeyBytes(random), null);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public byte[] derivePublicKeyBatch() {
+        Curve25519.derivePublicKeys(batchPrivateKeys, batchResult, 0);
+        return batchResult;
+    }
+
+    @Benchmark
+    public byte[] derivePublicKey() {
+        Curve25519.eval(result, 0, privateKey, null);
+        return result;
+    }
+
+    @Benchmark
+    public byte[] sharedSecret() {
+        Curve25519.eval(result, 0, privateKey, publicKey);
+        return result;
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: GPL-2.0-or-later
+ */
+
+package com.wireguard.benchmark;
+
+import com.wireguard.config.IPCidr;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks for constructing and formatting CIDR addresses.
+ */
+
+@State(Scope.Benchmark)
+public class IPCidrBenchmark {
+    private final IPCidr v4 = new IPCidr("10.20.30.40/24");
+    private final IPCidr v6 = new IPCidr("fd00:1234:5678::abcd/112");
+
+    @Benchmark
+    public IPCidr parseV4() {
+        return new IPCidr("10.20.30.40/24");
+    }
+
+    @Benchmark
+    public IPCidr parseV6() {
+        return new IPCidr("fd00:1234:5678::abcd/112");
+    }
+
+    @Benchmark
+    public String formatV4() {
+        return v4.toString();
+    }
+
+    @Benchmark
+    public String formatV6() {
+        return v6.toString();
+    }
+}
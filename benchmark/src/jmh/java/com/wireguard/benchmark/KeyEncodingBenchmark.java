@@ -0,0 +1,53 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: GPL-2.0-or-later
+ */
+
+package com.wireguard.benchmark;
+
+import com.wireguard.crypto.KeyEncoding;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * Benchmarks for the constant-time key encoders and decoders.
+ */
+
+@State(Scope.Benchmark)
+public class KeyEncodingBenchmark {
+    private final char[] hex = new char[KeyEncoding.KEY_LENGTH_HEX];
+    private String base64;
+    private byte[] key;
+
+    @Setup
+    public void setup() {
+        key = SyntheticConfigs.randomKeyBytes(new Random(0));
+        base64 = KeyEncoding.keyToBase64(key);
+    }
+
+    @Benchmark
+    public byte[] keyFromBase64() {
+        return KeyEncoding.keyFromBase64(base64);
+    }
+
+    @Benchmark
+    public String keyToHex() {
+        return KeyEncoding.keyToHex(key);
+    }
+
+    @Benchmark
+    public String base64ToHexViaBytes() {
+        return KeyEncoding.keyToHex(KeyEncoding.keyFromBase64(base64));
+    }
+
+    @Benchmark
+    public char[] base64ToHex() {
+        KeyEncoding.base64ToHex(base64, 0, hex, 0);
+        return hex;
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright © 2018 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ * SPDX-License-Identifier: GPL-2.0-or-later
+ */
+
+package com.wireguard.benchmark;
+
+import com.wireguard.crypto.KeyEncoding;
+
+import java.util.Random;
+
+/**
+ * Generates deterministic wg-quick configuration files of arbitrary size for benchmarking.
+ */
+
+final class SyntheticConfigs {
+    private static final long SEED = 0x5747_4245_4e43_4821L;
+
+    private SyntheticConfigs() {
+        // Prevent instantiation.
+    }
+
+    @SuppressWarnings("MagicNumber")
+    static String generate(final int peerCount) {
+        final Random random = new Random(SEED);
+        final StringBuilder sb = new StringBuilder(256 + peerCount * 256);
+        sb.append("[Interface]\n");
+        sb.append("PrivateKey = ").append(randomKey(random)).append('\n');
+        sb.append("Address = 10.0.0.1/16, fd00::1/64\n");
+        sb.append("DNS = 10.0.0.53, fd00::53\n");
+        sb.append("ListenPort = 51820\n");
+        sb.append("MTU = 1420\n");
+        for (int i = 0; i < peerCount; ++i) {
+            final int host = i + 2;
+            sb.append("\n[Peer]\n");
+            sb.append("PublicKey = ").append(randomKey(random)).append('\n');
+            if (i % 2 == 0)
+                sb.append("PresharedKey = ").append(randomKey(random)).append('\n');
+            sb.append("AllowedIPs = 10.").append(host >> 16 & 0xff).append('.')
+                    .append(host >> 8 & 0xff).append('.').append(host & 0xff).append("/32, ")
+                    .append("fd00::").append(Integer.toHexString(host)).append("/128\n");
+            sb.append("Endpoint = 192.0.2.").append(host % 250 + 1).append(':')
+                    .append(51820 + i % 1000).append('\n');
+            sb.append("PersistentKeepalive = 25\n");
+        }
+        return sb.toString();
+    }
+
+    static String randomKey(final Random random) {
+        return KeyEncoding.keyToBase64(randomKeyBytes(random));
+    }
+
+    static byte[] randomKeyBytes(final Random random) {
+        final byte[] key = new byte[KeyEncoding.KEY_LENGTH];
+        random.nextBytes(key);
+        return key;
+    }
+}